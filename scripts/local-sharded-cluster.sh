@@ -0,0 +1,96 @@
+#!/usr/bin/env bash
+# Local sharded cluster for the measure collections: one config server, two single node shards and mongos on the
+# default port, so the application (mongodb.url = mongodb://localhost:27017) connects to it unchanged.
+# Needs mongod, mongos and mongosh (or the legacy mongo shell) in PATH.
+# Shards are single nodes: enough to check query routing, but writes with w:2 (measure collections) cannot be acknowledged.
+#
+#   scripts/local-sharded-cluster.sh start   # then set storage.sharded = true and run main.java.db.ShardingTests
+#   scripts/local-sharded-cluster.sh stop
+#   scripts/local-sharded-cluster.sh clean   # stop and delete the data
+set -euo pipefail
+
+BASE_DIR="${CLUSTER_DIR:-/tmp/task2-cluster}"
+CONFIG_PORT=27100
+SHARD_PORTS=(27101 27102)
+MONGOS_PORT="${MONGOS_PORT:-27017}"
+
+SHELL_BIN=$(command -v mongosh || command -v mongo || true)
+if [ -z "$SHELL_BIN" ]; then
+    echo "mongosh or mongo shell not found" >&2
+    exit 1
+fi
+
+run_js() {
+    "$SHELL_BIN" --quiet --port "$1" --eval "$2"
+}
+
+wait_for() {
+    for _ in $(seq 1 30); do
+        if run_js "$1" "db.adminCommand({ ping: 1 }).ok" >/dev/null 2>&1; then
+            return 0
+        fi
+        sleep 1
+    done
+    echo "mongo on port $1 did not start" >&2
+    exit 1
+}
+
+# the replica set is initiated only once, then the node must become primary
+init_replset() {
+    local port=$1 name=$2 extra=$3
+    run_js "$port" "try { rs.status() } catch (e) {
+        rs.initiate({ _id: '$name', $extra members: [{ _id: 0, host: 'localhost:$port' }] }) }" >/dev/null
+    for _ in $(seq 1 30); do
+        if [ "$(run_js "$port" "db.hello ? db.hello().isWritablePrimary : db.isMaster().ismaster")" = "true" ]; then
+            return 0
+        fi
+        sleep 1
+    done
+    echo "replica set $name has no primary" >&2
+    exit 1
+}
+
+start() {
+    mkdir -p "$BASE_DIR/config" "$BASE_DIR/logs"
+    mongod --configsvr --replSet cfg --port "$CONFIG_PORT" --bind_ip localhost \
+        --dbpath "$BASE_DIR/config" --logpath "$BASE_DIR/logs/config.log" --fork
+    wait_for "$CONFIG_PORT"
+    init_replset "$CONFIG_PORT" cfg "configsvr: true,"
+
+    for i in "${!SHARD_PORTS[@]}"; do
+        port=${SHARD_PORTS[$i]}
+        mkdir -p "$BASE_DIR/shard$i"
+        mongod --shardsvr --replSet "shard$i" --port "$port" --bind_ip localhost \
+            --dbpath "$BASE_DIR/shard$i" --logpath "$BASE_DIR/logs/shard$i.log" --fork
+        wait_for "$port"
+        init_replset "$port" "shard$i" ""
+    done
+
+    mongos --configdb "cfg/localhost:$CONFIG_PORT" --port "$MONGOS_PORT" --bind_ip localhost \
+        --logpath "$BASE_DIR/logs/mongos.log" --pidfilepath "$BASE_DIR/mongos.pid" --fork
+    wait_for "$MONGOS_PORT"
+
+    for i in "${!SHARD_PORTS[@]}"; do
+        run_js "$MONGOS_PORT" "sh.addShard('shard$i/localhost:${SHARD_PORTS[$i]}')" >/dev/null
+    done
+    run_js "$MONGOS_PORT" "sh.status()"
+    echo "mongos listening on localhost:$MONGOS_PORT"
+}
+
+stop() {
+    if [ -f "$BASE_DIR/mongos.pid" ]; then
+        kill "$(cat "$BASE_DIR/mongos.pid")" 2>/dev/null || true
+        rm -f "$BASE_DIR/mongos.pid"
+    fi
+    for i in "${!SHARD_PORTS[@]}"; do
+        [ -d "$BASE_DIR/shard$i" ] && mongod --shutdown --dbpath "$BASE_DIR/shard$i" || true
+    done
+    [ -d "$BASE_DIR/config" ] && mongod --shutdown --dbpath "$BASE_DIR/config" || true
+}
+
+case "${1:-}" in
+    start) start ;;
+    stop) stop ;;
+    clean) stop; rm -rf "$BASE_DIR" ;;
+    *) echo "usage: $0 start|stop|clean" >&2; exit 1 ;;
+esac
@@ -5,12 +5,15 @@ import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.*;
 import javafx.stage.Stage;
+import main.java.db.IngestionScheduler;
+import main.java.db.MeasureRetention;
 import main.java.gui.LoginController;
 import main.java.gui.Task2GUIController;
 
 import java.io.IOException;
 
 public class Task2 extends Application {
+    private final IngestionScheduler scheduler = new IngestionScheduler();
 
     public static void main(String[] args) {
         launch(args);
@@ -23,9 +26,20 @@ public class Task2 extends Application {
             return;
         System.out.println(loggedUser);
 
+        // opt-in (ingestion.periodic) and only for admins: every client would fetch the whole fleet otherwise
+        if(loggedUser.getStatus() == User.Status.ADMIN)
+            scheduler.startPeriodic();
+        if(MeasureRetention.getInstance().isEnabled())
+            MeasureRetention.getInstance().start();
         showMapWindow(stage, loggedUser);
     }
 
+    @Override
+    public void stop() {
+        scheduler.stopPeriodic();
+        MeasureRetention.getInstance().stop();
+    }
+
     void showMapWindow(Stage stage, User user) throws IOException {
         FXMLLoader fxmlLoader = null;
         User.Status userStatus = null;
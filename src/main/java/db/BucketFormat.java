@@ -0,0 +1,118 @@
+package main.java.db;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+
+/**
+ * Layouts of weekly measure buckets.
+ * ROWS, one sub-document per hour repeating names and units of every measure:
+ *   { ..., periodStart, weatherCondition: [{ datetime, measurements: [{ name, value, unit }] }] }
+ * COLUMNS, names and units stored once per bucket:
+ *   { ..., periodStart, columns: { t: [seconds from periodStart], loc: [location] (pollution only),
+ *                                   m: [{ n: name, u: unit, v: [value of each t, null if not measured] }] } }
+ * Readers expand either layout to the row array with rowsExpression(), so the stages following it do not change.
+ */
+final class BucketFormat {
+    enum Layout { ROWS, COLUMNS }
+
+    static final String COLUMNS = "columns";
+
+    private BucketFormat() {}
+
+    static Layout getWriteLayout() {
+        return Layout.valueOf(SettingsManager.MAINSETTINGS.getOrSetDefault("buckets", "layout", Layout.COLUMNS.name()));
+    }
+
+    static boolean isPollution(String arrayName) {
+        return arrayName.equals(MeasureSource.POLLUTION.getArrayName());
+    }
+
+    private static Document emptyColumns() {
+        return new Document("t", Collections.emptyList()).append("loc", Collections.emptyList())
+                .append("m", Collections.emptyList());
+    }
+
+    /**
+     * Row array of a bucket of any layout, an empty array if the bucket has no hours
+     */
+    static Document rowsExpression(String arrayName) {
+        Document row = new Document("datetime", new Document("$add", Arrays.asList("$periodStart",
+                new Document("$multiply", Arrays.asList(new Document("$arrayElemAt", Arrays.asList("$$c.t", "$$i")), 1000)))));
+        if(isPollution(arrayName))
+            row.append("location", new Document("$arrayElemAt", Arrays.asList("$$c.loc", "$$i")));
+        row.append("measurements", new Document("$filter", new Document("input", new Document("$map",
+                new Document("input", "$$c.m").append("as", "col")
+                        .append("in", new Document("name", "$$col.n")
+                                .append("value", new Document("$arrayElemAt", Arrays.asList("$$col.v", "$$i")))
+                                .append("unit", "$$col.u"))))
+                .append("as", "x").append("cond", new Document("$ne", Arrays.asList("$$x.value", null)))));
+
+        Document fromColumns = new Document("$let", new Document("vars",
+                new Document("c", new Document("$ifNull", Arrays.asList("$" + COLUMNS, new Document("$literal", emptyColumns())))))
+                .append("in", new Document("$map", new Document("input",
+                        new Document("$range", Arrays.asList(0, new Document("$size", "$$c.t"))))
+                        .append("as", "i").append("in", row))));
+
+        return new Document("$cond", Arrays.asList(new Document("$isArray", "$" + arrayName), "$" + arrayName, fromColumns));
+    }
+
+    /**
+     * Datetimes of the hours of a bucket of any layout, cheaper than rowsExpression when measures are not needed
+     */
+    static Document datetimesExpression(String arrayName) {
+        Document fromColumns = new Document("$map", new Document("input",
+                new Document("$ifNull", Arrays.asList("$" + COLUMNS + ".t", Collections.emptyList())))
+                .append("as", "t").append("in", new Document("$add", Arrays.asList("$periodStart",
+                        new Document("$multiply", Arrays.asList("$$t", 1000))))));
+        return new Document("$cond", Arrays.asList(new Document("$isArray", "$" + arrayName),
+                "$" + arrayName + ".datetime", fromColumns));
+    }
+
+    /**
+     * Stage rewriting the bucket array field with the rows of any layout, to be placed right after the bucket $match
+     */
+    static Bson expandStage(String arrayName) {
+        return new Document("$addFields", new Document(arrayName, rowsExpression(arrayName)));
+    }
+
+    /**
+     * Columns of the row array in field rows (e.g. "$weatherCondition"), measures are identified by name and unit
+     */
+    static Document columnsExpression(String rows, String arrayName) {
+        Document offset = new Document("$toInt", new Document("$divide", Arrays.asList(
+                new Document("$subtract", Arrays.asList("$$r.datetime", "$periodStart")), 1000)));
+        Document measureKeys = new Document("$reduce", new Document("input", rows)
+                .append("initialValue", Collections.emptyList())
+                .append("in", new Document("$setUnion", Arrays.asList("$$value", new Document("$map",
+                        new Document("input", "$$this.measurements").append("as", "x")
+                                .append("in", new Document("n", "$$x.name").append("u", "$$x.unit")))))));
+        Document valueOfRow = new Document("$let", new Document("vars", new Document("x",
+                new Document("$arrayElemAt", Arrays.asList(new Document("$filter",
+                        new Document("input", "$$r.measurements").append("as", "y")
+                                .append("cond", new Document("$and", Arrays.asList(
+                                        new Document("$eq", Arrays.asList("$$y.name", "$$col.n")),
+                                        new Document("$eq", Arrays.asList("$$y.unit", "$$col.u")))))), 0))))
+                .append("in", "$$x.value"));
+
+        Document columns = new Document("t", new Document("$map", new Document("input", rows).append("as", "r").append("in", offset)));
+        if(isPollution(arrayName))
+            columns.append("loc", new Document("$map", new Document("input", rows).append("as", "r").append("in", "$$r.location")));
+        columns.append("m", new Document("$map", new Document("input", measureKeys).append("as", "col")
+                .append("in", new Document("n", "$$col.n").append("u", "$$col.u")
+                        .append("v", new Document("$map", new Document("input", rows).append("as", "r").append("in", valueOfRow))))));
+        return columns;
+    }
+
+    /**
+     * Update pipeline stages storing the row array field in the given layout
+     */
+    static List<Document> storeStages(String arrayName, Layout layout) {
+        if(layout == Layout.ROWS)
+            return Collections.singletonList(new Document("$unset", COLUMNS));
+        return Arrays.asList(
+                new Document("$set", new Document(COLUMNS, columnsExpression("$" + arrayName, arrayName))),
+                new Document("$unset", arrayName));
+    }
+}
@@ -0,0 +1,137 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Rewrites stored buckets to the configured layout (see BucketFormat) in batches of batchSize buckets,
+ * pausing between batches so the migration can run online next to ingestion and queries.
+ * Every bucket is converted by a single update pipeline, readers understand both layouts while it runs.
+ * It is started explicitly, from the admin menu or by main.
+ */
+public class BucketMigrator {
+    private final int batchSize;
+    private final long pauseMillis;
+    private final BucketFormat.Layout layout;
+    private volatile boolean cancelled = false;
+    private Thread thread = null;
+
+    public BucketMigrator() {
+        this(SettingsManager.MAINSETTINGS.getOrSetDefault("buckets", "migrationBatchSize", 200),
+                SettingsManager.MAINSETTINGS.getOrSetDefault("buckets", "migrationPauseMs", 100),
+                BucketFormat.getWriteLayout());
+    }
+
+    BucketMigrator(int batchSize, long pauseMillis, BucketFormat.Layout layout) {
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+        this.layout = layout;
+    }
+
+    /**
+     * Convert all the buckets of a collection not yet in the target layout
+     * @return number of converted buckets
+     */
+    public int migrate(MeasureSource source) throws InterruptedException {
+        if(MeasureStorage.isTimeSeries()) {
+            System.out.println("Bucket migration of " + source.getCollectionName() + " skipped, stored as time-series");
+            return 0;
+        }
+        String arrayName = source.getArrayName();
+        MongoCollection<Document> collection = MongoDBManager.getInstance().getCollection(source.getAppCollection());
+        String oldLayoutField = (layout == BucketFormat.Layout.COLUMNS) ? arrayName : BucketFormat.COLUMNS;
+
+        List<Document> updatePipeline = new ArrayList<>();
+        updatePipeline.add(new Document("$set", new Document(arrayName, BucketFormat.rowsExpression(arrayName))));
+        updatePipeline.addAll(BucketFormat.storeStages(arrayName, layout));
+
+        int migrated = 0;
+        ObjectId lastId = null;
+        while(!cancelled) {
+            // the scan goes to every shard, updates carry the shard key so each one is routed to a single shard
+            List<Document> keys = new ArrayList<>();
+            MongoCursor<Document> cursor = collection.find(lastId == null ? exists(oldLayoutField)
+                    : and(exists(oldLayoutField), gt("_id", lastId)))
+                    .projection(include("_id", "country", "city", "periodStart"))
+                    .sort(ascending("_id")).limit(batchSize).iterator();
+            try {
+                while (cursor.hasNext())
+                    keys.add(cursor.next());
+            } finally {
+                cursor.close();
+            }
+            if(keys.isEmpty())
+                break;
+
+            List<WriteModel<Document>> operations = new ArrayList<>();
+            for(Document key : keys)
+                // buckets rewritten by ingestion in the meantime are already in the target layout and skipped
+                operations.add(new UpdateOneModel<>(and(eq("country", key.get("country")), eq("city", key.get("city")),
+                        eq("periodStart", key.get("periodStart")), eq("_id", key.get("_id")), exists(oldLayoutField)),
+                        updatePipeline));
+            migrated += collection.bulkWrite(operations, new BulkWriteOptions().ordered(false)).getModifiedCount();
+            lastId = keys.get(keys.size() - 1).getObjectId("_id");
+
+            System.out.println("Bucket migration of " + source.getCollectionName() + ": " + migrated + " buckets");
+            Thread.sleep(pauseMillis);
+        }
+        return migrated;
+    }
+
+    public int migrateAll() throws InterruptedException {
+        int migrated = 0;
+        for(MeasureSource source : MeasureSource.values()) {
+            long sizeBefore = BucketStorageReport.getCollectionSize(source);
+            migrated += migrate(source);
+            System.out.println("Bucket migration of " + source.getCollectionName() + " done, data size "
+                    + sizeBefore + " -> " + BucketStorageReport.getCollectionSize(source) + " bytes");
+        }
+        return migrated;
+    }
+
+    /**
+     * Run the migration of all measure collections in a background thread
+     */
+    public synchronized void start() {
+        if(thread != null && thread.isAlive())
+            return;
+        cancelled = false;
+        thread = new Thread(() -> {
+            try {
+                migrateAll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.out.println("Bucket migration failed:");
+                e.printStackTrace();
+            }
+        }, "bucket-migrator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop after the current batch, converted buckets stay converted
+     */
+    public synchronized void stop() {
+        cancelled = true;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        BucketStorageReport.print();
+        new BucketMigrator().migrateAll();
+        BucketStorageReport.print();
+    }
+}
@@ -0,0 +1,108 @@
+package main.java.db;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+
+import java.util.*;
+
+/**
+ * Storage used by the measure collections, per bucket layout: number of buckets and hours, BSON bytes per hour,
+ * and the bytes saved (or that would be saved) by storing row buckets as columns.
+ */
+public class BucketStorageReport {
+    /**
+     * Uncompressed data size of a measure collection, from collStats
+     */
+    static long getCollectionSize(MeasureSource source) {
+        Document stats = MongoDBManager.getInstance().database.runCommand(
+                new Document("collStats", source.getCollectionName()));
+        return ((Number)stats.get("size")).longValue();
+    }
+
+    /**
+     * Size on disk of a measure collection (compressed), from collStats
+     */
+    static long getStorageSize(MeasureSource source) {
+        Document stats = MongoDBManager.getInstance().database.runCommand(
+                new Document("collStats", source.getCollectionName()));
+        return ((Number)stats.get("storageSize")).longValue();
+    }
+
+    /**
+     * One document per layout found in the collection: { _id: layout, buckets, hours, bytes }.
+     * Needs $bsonSize (MongoDB 4.4).
+     */
+    static List<Document> getLayoutStats(MeasureSource source) {
+        String arrayName = source.getArrayName();
+        Document layout = new Document("$cond", Arrays.asList(new Document("$isArray", "$" + arrayName),
+                BucketFormat.Layout.ROWS.name(), BucketFormat.Layout.COLUMNS.name()));
+
+        List<Document> result = new ArrayList<>();
+        MongoCursor<Document> cursor = MongoDBManager.getInstance().getCollection(source.getAppCollection())
+                .aggregate(Arrays.asList(
+                        new Document("$project", new Document("layout", layout)
+                                .append("hours", new Document("$size", BucketFormat.datetimesExpression(arrayName)))
+                                .append("bytes", new Document("$bsonSize", "$$ROOT"))),
+                        new Document("$group", new Document("_id", "$layout")
+                                .append("buckets", new Document("$sum", 1))
+                                .append("hours", new Document("$sum", "$hours"))
+                                .append("bytes", new Document("$sum", "$bytes")))))
+                .allowDiskUse(true).iterator();
+        try {
+            while (cursor.hasNext())
+                result.add(cursor.next());
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static double bytesPerHour(Document stats) {
+        long hours = ((Number)stats.get("hours")).longValue();
+        return (hours == 0) ? 0 : ((Number)stats.get("bytes")).doubleValue() / hours;
+    }
+
+    public static void print() {
+        for(MeasureSource source : MeasureSource.values()) {
+            System.out.println("## " + source.getCollectionName() + ": " + getCollectionSize(source) + " bytes, "
+                    + getStorageSize(source) + " bytes on disk");
+            if(MeasureStorage.isTimeSeries()) {
+                System.out.println("stored as time-series, no bucket layouts");
+                System.out.println("## END\n");
+                continue;
+            }
+
+            List<Document> layouts;
+            try {
+                layouts = getLayoutStats(source);
+            } catch (MongoCommandException e) {
+                System.out.println("layout details need MongoDB 4.4 ($bsonSize): " + e.getErrorMessage());
+                continue;
+            }
+
+            HashMap<String, Document> byLayout = new HashMap<>();
+            for(Document stats : layouts) {
+                byLayout.put(stats.getString("_id"), stats);
+                System.out.println(String.format("[%s] %d buckets, %d hours, %d bytes, %.1f bytes/hour",
+                        stats.getString("_id"), ((Number)stats.get("buckets")).longValue(),
+                        ((Number)stats.get("hours")).longValue(), ((Number)stats.get("bytes")).longValue(),
+                        bytesPerHour(stats)));
+            }
+
+            Document rows = byLayout.get(BucketFormat.Layout.ROWS.name());
+            Document columns = byLayout.get(BucketFormat.Layout.COLUMNS.name());
+            if(rows != null && columns != null) {
+                double savedPerHour = bytesPerHour(rows) - bytesPerHour(columns);
+                System.out.println(String.format("columns save %.1f bytes/hour (%.0f%%), %.0f bytes left to save by migrating",
+                        savedPerHour, 100 * savedPerHour / bytesPerHour(rows),
+                        savedPerHour * ((Number)rows.get("hours")).longValue()));
+            }
+            System.out.println("## END\n");
+        }
+    }
+
+    public static void main(String[] args) {
+        print();
+    }
+}
@@ -0,0 +1,134 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import main.java.City;
+import org.bson.Document;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Days with stored measures, one small document per city:
+ * { country, city, backfilled, measureswpast: { "2020-01": bitmask, ... }, measureswfor: {...}, measurespoll: {...} }
+ * where bit (day - 1) of a month mask is set if at least one hour of that day is stored.
+ * Masks are OR-ed after each ingestion run by MeasureBulkWriter.refreshDerived, so a lookup is a single document read whatever the
+ * amount of data of the city.
+ */
+public class DateAvailability {
+    private static DateAvailability INSTANCE = new DateAvailability();
+    public static DateAvailability getInstance() {
+        return INSTANCE;
+    }
+
+    private DateAvailability() {}
+
+    private MongoCollection<Document> getCollection() {
+        return MongoDBManager.getInstance().getCollection(MongoDBManager.AppCollection.AVAILABILITY);
+    }
+
+    public void createIndex() {
+        getCollection().createIndex(new Document("country", 1).append("city", 1),
+                new IndexOptions().unique(true).name("city_country_unique"));
+    }
+
+    private static Document monthMasks(Set<LocalDate> days) {
+        HashMap<YearMonth, Integer> masks = new HashMap<>();
+        for(LocalDate day : days)
+            masks.merge(YearMonth.from(day), 1 << (day.getDayOfMonth() - 1), (a, b) -> a | b);
+
+        Document result = new Document();
+        for(Map.Entry<YearMonth, Integer> mask : masks.entrySet())
+            result.append(mask.getKey().toString(), mask.getValue());
+        return result;
+    }
+
+    /**
+     * Set days as available, with one unordered bulk upsert
+     * @param days source -> city -> days with at least one stored hour
+     */
+    public void markDays(Map<MeasureSource, ? extends Map<City.CityName, ? extends Set<LocalDate>>> days) {
+        HashMap<City.CityName, Document> bitByCity = new HashMap<>();
+        for(Map.Entry<MeasureSource, ? extends Map<City.CityName, ? extends Set<LocalDate>>> sourceEntry : days.entrySet())
+            for(Map.Entry<City.CityName, ? extends Set<LocalDate>> cityEntry : sourceEntry.getValue().entrySet()) {
+                if(!bitByCity.containsKey(cityEntry.getKey()))
+                    bitByCity.put(cityEntry.getKey(), new Document());
+                Document masks = monthMasks(cityEntry.getValue());
+                for(String month : masks.keySet())
+                    bitByCity.get(cityEntry.getKey()).append(sourceEntry.getKey().getCollectionName() + "." + month,
+                            new Document("or", masks.getInteger(month)));
+            }
+
+        List<WriteModel<Document>> operations = new ArrayList<>();
+        for(Map.Entry<City.CityName, Document> entry : bitByCity.entrySet()) {
+            if(entry.getValue().isEmpty())
+                continue;
+            operations.add(new UpdateOneModel<>(
+                    and(eq("country", entry.getKey().getCountry()), eq("city", entry.getKey().getCity())),
+                    new Document("$bit", entry.getValue()),
+                    new UpdateOptions().upsert(true)));
+        }
+        if(!operations.isEmpty())
+            getCollection().bulkWrite(operations, new BulkWriteOptions().ordered(false));
+    }
+
+    /**
+     * Available days of all measure collections with one read.
+     * Cities with data written before this index existed are backfilled from raw buckets on first access.
+     */
+    public EnumMap<MeasureSource, HashSet<LocalDate>> getAvailableDates(City city) {
+        Document doc = getCollection().find(and(eq("country", city.getCountry()), eq("city", city.getCity()))).first();
+        if(doc == null || !Boolean.TRUE.equals(doc.getBoolean("backfilled"))) {
+            backfill(city);
+            doc = getCollection().find(and(eq("country", city.getCountry()), eq("city", city.getCity()))).first();
+        }
+
+        EnumMap<MeasureSource, HashSet<LocalDate>> result = new EnumMap<>(MeasureSource.class);
+        for(MeasureSource source : MeasureSource.values()) {
+            HashSet<LocalDate> dates = new HashSet<>();
+            Document months = (doc == null) ? null : doc.get(source.getCollectionName(), Document.class);
+            if(months != null)
+                for(String month : months.keySet()) {
+                    YearMonth yearMonth = YearMonth.parse(month);
+                    int mask = ((Number)months.get(month)).intValue();
+                    for(int day = 1; day <= yearMonth.lengthOfMonth(); day++)
+                        if((mask & (1 << (day - 1))) != 0)
+                            dates.add(yearMonth.atDay(day));
+                }
+            result.put(source, dates);
+        }
+        return result;
+    }
+
+    public HashSet<LocalDate> getAvailableDates(City city, MeasureSource source) {
+        return getAvailableDates(city).get(source);
+    }
+
+    private void backfill(City city) {
+        EnumMap<MeasureSource, Map<City.CityName, HashSet<LocalDate>>> days = new EnumMap<>(MeasureSource.class);
+        for(MeasureSource source : MeasureSource.values()) {
+            HashSet<LocalDate> dates = MongoDBManager.getInstance().getAvailableDates(city, source.getAppCollection(),
+                    source.getArrayName());
+            // days of compacted weeks are only left in day rollups
+            LocalDateTime rawStart = MeasureRetention.getInstance().getRawStart(source);
+            if(rawStart != null)
+                dates.addAll(MeasureRollups.getInstance().getDays(source, Collections.singletonList(city.getCityName()),
+                        LocalDate.ofEpochDay(0).atStartOfDay(), rawStart.minusSeconds(1))
+                        .getOrDefault(city.getCityName(), Collections.emptySet()));
+            days.put(source, Collections.singletonMap(city.getCityName(), dates));
+        }
+        markDays(days);
+
+        getCollection().updateOne(and(eq("country", city.getCountry()), eq("city", city.getCity())),
+                new Document("$set", new Document("backfilled", true)), new UpdateOptions().upsert(true));
+    }
+}
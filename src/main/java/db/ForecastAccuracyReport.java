@@ -0,0 +1,245 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.MergeOptions;
+import com.mongodb.client.model.UpdateOptions;
+import main.java.City;
+import main.java.gui.ProgressHandler;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.merge;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+
+/**
+ * Weekly forecast accuracy of every enabled city, one document per (city, measure, ISO week):
+ * { _id, country, city, name, unit, week, n, mae, rmse, bias, updatedAt } with bias = mean(forecast - real).
+ * Errors come from the same past/forecast day rollup join used by ForecastReliability and are aggregated and
+ * $merge-d in the database. A per-city watermark (last reported past weather day, kept in ingestionjobs) makes
+ * refreshes incremental: only weeks containing newer past weather days are recomputed.
+ */
+public class ForecastAccuracyReport {
+    private static final String JOB_NAME = "forecastaccuracy";
+
+    private static ForecastAccuracyReport INSTANCE = new ForecastAccuracyReport();
+    public static ForecastAccuracyReport getInstance() {
+        return INSTANCE;
+    }
+
+    private final int threads;
+
+    private ForecastAccuracyReport() {
+        threads = SettingsManager.MAINSETTINGS.getOrSetDefault("report", "threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    private MongoCollection<Document> getCollection() {
+        return MongoDBManager.getInstance().getCollection(MongoDBManager.AppCollection.FORECAST_ACCURACY);
+    }
+
+    private MongoCollection<Document> getWatermarks() {
+        return MongoDBManager.getInstance().getCollection(MongoDBManager.AppCollection.INGESTION_JOBS);
+    }
+
+    private MongoCollection<Document> getPastRollups() {
+        return MeasureRollups.getInstance().getCollection(MeasureSource.PAST_WEATHER, MeasureRollups.Resolution.DAY);
+    }
+
+    public void createIndex() {
+        getCollection().createIndex(new Document("country", 1).append("city", 1).append("week", 1),
+                new IndexOptions().name("city_country_week"));
+    }
+
+    private static String unit(City.CityName cityName) {
+        return cityName.getCountry() + "|" + cityName.getCity();
+    }
+
+    private static Bson cityFilter(City.CityName cityName) {
+        return and(eq("country", cityName.getCountry()), eq("city", cityName.getCity()));
+    }
+
+    static LocalDate weekStart(LocalDate day) {
+        return day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+    }
+
+    /**
+     * Errors of the past weather days in [from, to] grouped by ISO week and merged into the report
+     */
+    private List<Bson> reportPipeline(City.CityName cityName, LocalDateTime from, LocalDateTime to) {
+        Document week = new Document("$dateFromParts", new Document("isoWeekYear", new Document("$isoWeekYear", "$t"))
+                .append("isoWeek", new Document("$isoWeek", "$t")).append("isoDayOfWeek", 1));
+        Document diff = new Document("$subtract", Arrays.asList("$forecast", "$real"));
+
+        List<Bson> pipeline = ForecastReliability.getInstance().errorPipeline(cityFilter(cityName), from, to);
+        pipeline.add(new Document("$project", new Document("country", 1).append("city", 1).append("name", 1)
+                .append("unit", 1).append("week", week).append("diff", diff)));
+        pipeline.add(new Document("$group", new Document("_id", new Document("country", "$country").append("city", "$city")
+                .append("name", "$name").append("week", "$week"))
+                .append("unit", new Document("$first", "$unit"))
+                .append("n", new Document("$sum", 1))
+                .append("sumAbs", new Document("$sum", new Document("$abs", "$diff")))
+                .append("sumSq", new Document("$sum", new Document("$multiply", Arrays.asList("$diff", "$diff"))))
+                .append("sumDiff", new Document("$sum", "$diff"))));
+        pipeline.add(new Document("$project", new Document("_id", 1)
+                .append("country", "$_id.country").append("city", "$_id.city").append("name", "$_id.name")
+                .append("week", "$_id.week").append("unit", 1).append("n", 1)
+                .append("mae", new Document("$divide", Arrays.asList("$sumAbs", "$n")))
+                .append("rmse", new Document("$sqrt", new Document("$divide", Arrays.asList("$sumSq", "$n"))))
+                .append("bias", new Document("$divide", Arrays.asList("$sumDiff", "$n")))
+                .append("updatedAt", new Document("$literal", LocalDateTime.now()))));
+        pipeline.add(merge(MongoDBManager.AppCollection.FORECAST_ACCURACY.getName(), new MergeOptions()
+                .whenMatched(MergeOptions.WhenMatched.REPLACE)
+                .whenNotMatched(MergeOptions.WhenNotMatched.INSERT)));
+        return pipeline;
+    }
+
+    private LocalDateTime firstOrLastPastDay(City.CityName cityName, boolean last) {
+        Document d = getPastRollups().find(and(cityFilter(cityName), ne("avg", null)))
+                .sort(last ? descending("country", "city", "t") : ascending("country", "city", "t"))
+                .projection(include("t")).limit(1).first();
+        return (d == null) ? null : d.get("t", LocalDateTime.class);
+    }
+
+    /**
+     * Last past weather day included in the report of a city, null if the city has not been reported yet
+     */
+    LocalDateTime getWatermark(City.CityName cityName) {
+        Document watermarkDoc = getWatermarks().find(and(eq("job", JOB_NAME), eq("unit", unit(cityName)))).first();
+        return (watermarkDoc == null) ? null : watermarkDoc.get("watermark", LocalDateTime.class);
+    }
+
+    /**
+     * Recompute the weeks of a city having past weather days newer than its watermark
+     * @return true if the report of the city changed
+     */
+    private boolean refreshCity(City.CityName cityName) {
+        LocalDateTime watermark = getWatermark(cityName);
+
+        LocalDateTime lastDay = firstOrLastPastDay(cityName, true);
+        if(lastDay == null || (watermark != null && !lastDay.isAfter(watermark)))
+            return false;
+
+        LocalDate firstNewDay = (watermark == null) ? firstOrLastPastDay(cityName, false).toLocalDate()
+                : watermark.toLocalDate().plusDays(1);
+        LocalDateTime from = weekStart(firstNewDay).atStartOfDay();
+        LocalDateTime to = lastDay.toLocalDate().atTime(LocalTime.MAX);
+
+        getPastRollups().aggregate(reportPipeline(cityName, from, to)).allowDiskUse(true).toCollection();
+
+        getWatermarks().updateOne(and(eq("job", JOB_NAME), eq("unit", unit(cityName))),
+                new Document("$set", new Document("country", cityName.getCountry()).append("city", cityName.getCity())
+                        .append("watermark", lastDay).append("completedAt", LocalDateTime.now())),
+                new UpdateOptions().upsert(true));
+        return true;
+    }
+
+    /**
+     * Bring the report of the given cities up to date, after an ingestion of their weather
+     * @return number of cities whose report changed
+     */
+    int refreshCities(Collection<City.CityName> cityNames) {
+        if(!MeasureRollups.getInstance().isEnabled())
+            return 0;
+        int updated = 0;
+        for(City.CityName cityName : cityNames)
+            if(refreshCity(cityName))
+                updated++;
+        return updated;
+    }
+
+    /**
+     * Bring the report up to date for all enabled cities, in parallel
+     * @return number of cities whose report changed
+     */
+    public int refresh(ProgressHandler progress) {
+        if(!MeasureRollups.getInstance().isEnabled()) {
+            System.out.println("Forecast accuracy report needs rollups, skipped");
+            return 0;
+        }
+
+        List<City> cities = MongoDBManager.getInstance().getCitiesByStatus(true);
+        if(progress != null) progress.setMaxProgress(cities.size());
+
+        int updated = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for(City city : cities)
+                results.add(pool.submit(() -> refreshCity(city.getCityName())));
+
+            for(int i=0; i<results.size(); i++) {
+                try {
+                    if(results.get(i).get())
+                        updated++;
+                } catch (ExecutionException e) {
+                    System.out.println("Forecast accuracy report of " + cities.get(i).getCityName() + " failed:");
+                    e.getCause().printStackTrace();
+                }
+                if(progress != null) progress.increaseProgress();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        System.out.println("Forecast accuracy report: " + updated + "/" + cities.size() + " cities updated");
+        return updated;
+    }
+
+    /**
+     * Drop the report and its watermarks, then compute it from scratch
+     */
+    public int rebuild(ProgressHandler progress) {
+        getCollection().drop();
+        getWatermarks().deleteMany(eq("job", JOB_NAME));
+        createIndex();
+        return refresh(progress);
+    }
+
+    /**
+     * Report documents of the given cities for the weeks overlapping [startDate, endDate], sorted by city and week
+     */
+    public List<Document> getWeeklyAccuracy(Collection<City> cities, LocalDate startDate, LocalDate endDate) {
+        List<City.CityName> cityNames = new ArrayList<>();
+        for(City c : cities)
+            cityNames.add(c.getCityName());
+        List<Document> result = new ArrayList<>();
+        if(cityNames.isEmpty())
+            return result;
+
+        MongoCursor<Document> cursor = getCollection().find(and(ForecastReliability.cityFilter(cityNames),
+                gte("week", weekStart(startDate).atStartOfDay()), lte("week", endDate.atTime(LocalTime.MAX))))
+                .sort(ascending("country", "city", "week", "name")).iterator();
+        try {
+            while (cursor.hasNext())
+                result.add(cursor.next());
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    public static void main(String[] args) {
+        if(args.length > 0 && args[0].equals("rebuild"))
+            ForecastAccuracyReport.getInstance().rebuild(null);
+        else
+            ForecastAccuracyReport.getInstance().refresh(null);
+    }
+}
@@ -0,0 +1,200 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCursor;
+import main.java.City;
+import main.java.measures.MeasureValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Relative error of daily weather forecasts against the measured weather, (real - forecast) / real.
+ * Past and forecast day rollups are joined inside the database with $lookup on the exact (country, city, day, measure)
+ * key; days before the rollup watermark are joined in Java with a sorted merge join on the same key.
+ */
+public class ForecastReliability {
+    private static ForecastReliability INSTANCE = new ForecastReliability();
+    public static ForecastReliability getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Exact join key order of measures: country, city, datetime, measure name
+     */
+    public static final Comparator<MeasureValue> MEASURE_KEY_ORDER = Comparator
+            .comparing((MeasureValue m) -> m.cityName.getCountry())
+            .thenComparing(m -> m.cityName.getCity())
+            .thenComparing(m -> m.datetime)
+            .thenComparing(m -> m.name);
+
+    private ForecastReliability() {}
+
+    static Bson cityFilter(Collection<City.CityName> cities) {
+        List<Bson> cityFilters = new ArrayList<>();
+        for(City.CityName c : cities)
+            cityFilters.add(and(eq("country", c.getCountry()), eq("city", c.getCity())));
+        return cityFilters.size() == 1 ? cityFilters.get(0) : or(cityFilters);
+    }
+
+    /**
+     * Pipeline on past weather day rollups producing
+     * { country, city, t, name, unit, real, forecast, error } for each measured day that has a numeric forecast,
+     * error is null when the real value is zero
+     * @param pastFilter selects past weather day rollups
+     */
+    List<Bson> errorPipeline(Bson pastFilter, LocalDateTime from, LocalDateTime to) {
+        Document sameKey = new Document("$and", Arrays.asList(
+                new Document("$eq", Arrays.asList("$country", "$$country")),
+                new Document("$eq", Arrays.asList("$city", "$$city")),
+                new Document("$eq", Arrays.asList("$t", "$$t")),
+                new Document("$eq", Arrays.asList("$name", "$$name"))));
+
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(match(and(pastFilter, gte("t", from), lte("t", to), ne("avg", null))));
+        pipeline.add(new Document("$lookup", new Document("from",
+                MeasureRollups.getCollectionName(MeasureSource.FORECAST_WEATHER, MeasureRollups.Resolution.DAY))
+                .append("let", new Document("country", "$country").append("city", "$city")
+                        .append("t", "$t").append("name", "$name"))
+                .append("pipeline", Arrays.asList(
+                        new Document("$match", new Document("t", new Document("$gte", from).append("$lte", to))
+                                .append("$expr", sameKey)),
+                        new Document("$project", new Document("_id", 0).append("avg", 1))))
+                .append("as", "forecast")));
+        pipeline.add(new Document("$unwind", "$forecast"));
+        pipeline.add(match(ne("forecast.avg", null)));
+        pipeline.add(new Document("$project", new Document("_id", 0)
+                .append("country", 1).append("city", 1).append("t", 1).append("name", 1).append("unit", 1)
+                .append("real", "$avg").append("forecast", "$forecast.avg")
+                .append("error", new Document("$cond", Arrays.asList(
+                        new Document("$eq", Arrays.asList("$avg", 0)), null,
+                        new Document("$divide", Arrays.asList(
+                                new Document("$subtract", Arrays.asList("$avg", "$forecast.avg")), "$avg")))))));
+        return pipeline;
+    }
+
+    /**
+     * Start of the days whose past and forecast day rollups are both complete (see MeasureRollups.getRawRange),
+     * null if there is none
+     */
+    private static LocalDateTime rolledUpSince() {
+        LocalDateTime since = MeasureRollups.COMPLETE;
+        for(MeasureSource source : Arrays.asList(MeasureSource.PAST_WEATHER, MeasureSource.FORECAST_WEATHER)) {
+            LocalDateTime[] rawRange = MeasureRollups.getInstance().getRawRange(source, MeasureRollups.Resolution.DAY);
+            if(rawRange == null)
+                continue;
+            if(rawRange[1] == null)
+                return null;
+            if(rawRange[1].isAfter(since))
+                since = rawRange[1];
+        }
+        return since;
+    }
+
+    /**
+     * Relative error of each daily forecast measure of the given cities, sorted by city, day and measure.
+     * Days from the rollup watermark on are joined in the database, earlier ones in Java.
+     */
+    public ArrayList<MeasureValue> getRelativeErrors(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        ArrayList<MeasureValue> resultList = new ArrayList<>();
+        LocalDateTime from = startDate.toLocalDate().atStartOfDay();
+        if(cities.isEmpty())
+            return resultList;
+
+        List<City.CityName> cityNames = new ArrayList<>();
+        for(City c : cities)
+            cityNames.add(c.getCityName());
+
+        // start of the database join, null for none
+        LocalDateTime joinFrom = MeasureRollups.getInstance().isEnabled() ? rolledUpSince() : null;
+        if(joinFrom != null && joinFrom.isBefore(from))
+            joinFrom = from;
+
+        if(joinFrom == null || joinFrom.isAfter(from)) {
+            LocalDateTime javaTo = (joinFrom == null || endDate.isBefore(joinFrom)) ? endDate : joinFrom.minusSeconds(1);
+            resultList.addAll(getRelativeErrorsInMemory(startDate, javaTo, cities));
+        }
+
+        if(joinFrom != null && !joinFrom.isAfter(endDate)) {
+            boolean joinedInJava = !resultList.isEmpty();
+            List<Bson> pipeline = errorPipeline(cityFilter(cityNames), joinFrom, endDate);
+            pipeline.add(match(ne("error", null)));
+            pipeline.add(new Document("$sort", new Document("country", 1).append("city", 1).append("t", 1).append("name", 1)));
+            MongoCursor<Document> cursor = MeasureRollups.getInstance()
+                    .getCollection(MeasureSource.PAST_WEATHER, MeasureRollups.Resolution.DAY)
+                    .aggregate(pipeline).allowDiskUse(true).iterator();
+            try {
+                while (cursor.hasNext()) {
+                    Document d = cursor.next();
+                    resultList.add(new MeasureValue(d.get("t", LocalDateTime.class),
+                            new City.CityName(d.getString("country"), d.getString("city")),
+                            d.getString("name"), ((Number)d.get("error")).doubleValue(), "%"));
+                }
+            } finally {
+                cursor.close();
+            }
+            // both parts are sorted, but each city has days in both
+            if(joinedInJava)
+                resultList.sort(MEASURE_KEY_ORDER);
+        }
+
+        return resultList;
+    }
+
+    /**
+     * Java side join of daily past and forecast weather read from raw buckets
+     */
+    private ArrayList<MeasureValue> getRelativeErrorsInMemory(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        ArrayList<MeasureValue> resultList = new ArrayList<>();
+        HashMap<City.CityName, ArrayList<MeasureValue>> realWeather = MongoDBManager.getInstance().getDailyPastWeather(startDate, endDate, cities);
+        HashMap<City.CityName, ArrayList<MeasureValue>> forecastWeather = MongoDBManager.getInstance().getDailyForecastWeather(startDate, endDate, cities);
+        if(realWeather == null || forecastWeather == null)
+            return resultList;
+
+        List<City.CityName> cityNames = new ArrayList<>(realWeather.keySet());
+        cityNames.sort(Comparator.comparing(City.CityName::getCountry).thenComparing(City.CityName::getCity));
+        for(City.CityName cityName : cityNames) {
+            ArrayList<MeasureValue> forecast = forecastWeather.get(cityName);
+            if(forecast == null)
+                continue;
+
+            mergeJoin(realWeather.get(cityName), forecast, (mReal, mForecast) -> {
+                // skip non numerical values and zeros, the error is relative to the real value
+                if(!(mReal.getValue() instanceof Double) || !(mForecast.getValue() instanceof Double)
+                        || mReal.<Double>getValue() == 0)
+                    return;
+
+                double relativeError = (mReal.<Double>getValue() - mForecast.<Double>getValue())/mReal.<Double>getValue();
+                resultList.add(new MeasureValue(mReal.datetime, mReal.cityName, mReal.name, relativeError, "%"));
+            });
+        }
+        return resultList;
+    }
+
+    /**
+     * Sorted merge join on the exact (city, datetime, name) key. Both lists are sorted in place by MEASURE_KEY_ORDER,
+     * then walked once; each left measure is paired with the first right measure having the same key.
+     */
+    public static void mergeJoin(List<MeasureValue> left, List<MeasureValue> right, BiConsumer<MeasureValue, MeasureValue> onMatch) {
+        left.sort(MEASURE_KEY_ORDER);
+        right.sort(MEASURE_KEY_ORDER);
+
+        int i = 0, j = 0;
+        while(i < left.size() && j < right.size()) {
+            int cmp = MEASURE_KEY_ORDER.compare(left.get(i), right.get(j));
+            if(cmp < 0)
+                i++;
+            else if(cmp > 0)
+                j++;
+            else {
+                onMatch.accept(left.get(i), right.get(j));
+                i++;
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import main.java.City;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+
+import static com.mongodb.client.model.Accumulators.addToSet;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.project;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+
+/**
+ * Finds which (city, source, day) are missing in the measure collections and plans the minimum set of fetches,
+ * merging adjacent missing days into ranges.
+ * Days from today on are always considered missing: they are partial and forecasts get revised.
+ */
+public class GapPlanner {
+    public static class FetchRange {
+        public final City city;
+        public final MeasureSource source;
+        public final LocalDate startDate;
+        public final LocalDate endDate;
+
+        FetchRange(City city, MeasureSource source, LocalDate startDate, LocalDate endDate) {
+            this.city = city;
+            this.source = source;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+
+        public int getDays() {
+            return (int)(endDate.toEpochDay() - startDate.toEpochDay()) + 1;
+        }
+
+        @Override
+        public String toString() {
+            return city.getCountry() + "/" + city.getCity() + " " + source.getCollectionName() + " " + startDate + ".." + endDate;
+        }
+    }
+
+    private final int maxRangeDays;
+
+    public GapPlanner() {
+        this(SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "maxRangeDays", 31));
+    }
+
+    public GapPlanner(int maxRangeDays) {
+        this.maxRangeDays = maxRangeDays;
+    }
+
+    /**
+     * Aggregation producing { country, city, days: ["yyyy-MM-dd"] } documents of the days with stored hours.
+     * The filter has the (country, city) shard key prefix of every city, so it is routed to their shards only.
+     */
+    static List<Bson> storedDaysPipeline(MeasureSource source, Collection<City.CityName> cityNames,
+                                         LocalDateTime from, LocalDateTime to) {
+        if(MeasureStorage.isTimeSeries()) {
+            // one document per hour, days are collected per city
+            String meta = "$" + MeasureStorage.META;
+            return Arrays.asList(
+                    match(MeasureStorage.timeSeriesFilter(cityNames, from, to)),
+                    group(new Document("country", meta + ".country").append("city", meta + ".city"),
+                            addToSet("days", new Document("$dateToString",
+                                    new Document("format", "%Y-%m-%d").append("date", "$datetime")))),
+                    project(fields(excludeId(), computed("country", "$_id.country"), computed("city", "$_id.city"),
+                            include("days"))));
+        }
+
+        String arrayName = source.getArrayName();
+        Document hoursInWindow = new Document("$filter", new Document("input",
+                new Document("$ifNull", Arrays.asList(BucketFormat.datetimesExpression(arrayName), Collections.emptyList())))
+                .append("as", "m")
+                .append("cond", new Document("$and", Arrays.asList(
+                        new Document("$gte", Arrays.asList("$$m", from)),
+                        new Document("$lte", Arrays.asList("$$m", to))))));
+        Document bucketDays = new Document("$setUnion", Collections.singletonList(new Document("$map",
+                new Document("input", hoursInWindow).append("as", "m")
+                        .append("in", new Document("$dateToString",
+                                new Document("format", "%Y-%m-%d").append("date", "$$m"))))));
+
+        return Arrays.asList(
+                match(MeasureStorage.bucketFilter(cityNames, from, to)),
+                project(fields(excludeId(), include("country", "city"), computed("days", bucketDays))));
+    }
+
+    /**
+     * Days with at least one stored hour, for each city, with one aggregation per collection
+     */
+    public Map<City.CityName, Set<LocalDate>> getStoredDays(MeasureSource source, Collection<City> cities,
+                                                           LocalDate startDate, LocalDate endDate) {
+        HashSet<City.CityName> wanted = new HashSet<>();
+        for(City c : cities)
+            wanted.add(c.getCityName());
+        if(wanted.isEmpty())
+            return new HashMap<>();
+        List<Bson> pipeline = storedDaysPipeline(source, wanted, startDate.atStartOfDay(), endDate.atTime(LocalTime.MAX));
+
+        HashMap<City.CityName, Set<LocalDate>> result = new HashMap<>();
+        MongoCollection<Document> collection = MongoDBManager.getInstance().getCollection(source.getAppCollection());
+        MongoCursor<Document> cursor = collection.aggregate(pipeline).iterator();
+        try {
+            while (cursor.hasNext()) {
+                Document bucket = cursor.next();
+                City.CityName cityName = new City.CityName(bucket.getString("country"), bucket.getString("city"));
+                if(!result.containsKey(cityName))
+                    result.put(cityName, new HashSet<>());
+                for(String day : bucket.getList("days", String.class))
+                    result.get(cityName).add(LocalDate.parse(day));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // compacted weeks have no raw hours left, their days are known from day rollups
+        LocalDateTime rawStart = MeasureRetention.getInstance().getRawStart(source);
+        if(rawStart != null && startDate.atStartOfDay().isBefore(rawStart))
+            for(Map.Entry<City.CityName, Set<LocalDate>> entry : MeasureRollups.getInstance().getDays(source, wanted,
+                    startDate.atStartOfDay(), rawStart.minusSeconds(1)).entrySet())
+                if(result.containsKey(entry.getKey()))
+                    result.get(entry.getKey()).addAll(entry.getValue());
+                else
+                    result.put(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    /**
+     * Plan fetches for the days in [startDate, endDate] that the APIs can provide and are not stored yet
+     * @param force if true plan every available day, ignoring stored data
+     */
+    public List<FetchRange> plan(Collection<City> cities, LocalDate startDate, LocalDate endDate,
+                                 Collection<MeasureSource> sources, boolean force) {
+        List<FetchRange> plan = new ArrayList<>();
+        LocalDate today = LocalDate.now();
+        for(MeasureSource source : sources) {
+            Map<City.CityName, Set<LocalDate>> stored = force ? Collections.emptyMap()
+                    : getStoredDays(source, cities, startDate, endDate);
+
+            for(City city : cities) {
+                Set<LocalDate> cityDays = stored.getOrDefault(city.getCityName(), Collections.emptySet());
+                LocalDate rangeStart = null;
+                for(LocalDate d = startDate; !d.isAfter(endDate.plusDays(1)); d = d.plusDays(1)) {
+                    boolean missing = !d.isAfter(endDate) && source.isAvailable(d)
+                            && (!d.isBefore(today) || !cityDays.contains(d));
+                    if(missing && rangeStart == null)
+                        rangeStart = d;
+                    else if(rangeStart != null && (!missing || d.toEpochDay() - rangeStart.toEpochDay() == maxRangeDays)) {
+                        plan.add(new FetchRange(city, source, rangeStart, d.minusDays(1)));
+                        rangeStart = missing ? d : null;
+                    }
+                }
+            }
+        }
+        return plan;
+    }
+
+    public static int countDays(List<FetchRange> plan) {
+        int days = 0;
+        for(FetchRange range : plan)
+            days += range.getDays();
+        return days;
+    }
+}
@@ -0,0 +1,236 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import main.java.City;
+import main.java.gui.ProgressHandler;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Two stage ingestion pipeline: a bounded pool of fetch workers feeds a single writer thread
+ * through a bounded queue. Fetching and writing overlap, and once the queue is full the
+ * fetchers block, so a slow database pushes back on the HTTP side.
+ * The writer coalesces days of the same bucket through a MeasureBulkWriter.
+ * Once the days are written, the forecast accuracy report of the cities with new weather is brought up to date.
+ */
+public class IngestionPipeline implements AutoCloseable {
+    private static class FetchedDay {
+        final MongoCollection<Document> collection;
+        final City city;
+        final LocalDate day;
+        final String arrayName;
+        final List<Document> hourlyList;
+        final CountDownLatch barrier;
+
+        FetchedDay(MongoCollection<Document> collection, City city, LocalDate day, String arrayName, List<Document> hourlyList) {
+            this.collection = collection;
+            this.city = city;
+            this.day = day;
+            this.arrayName = arrayName;
+            this.hourlyList = hourlyList;
+            this.barrier = null;
+        }
+
+        FetchedDay(CountDownLatch barrier) {
+            this.collection = null;
+            this.city = null;
+            this.day = null;
+            this.arrayName = null;
+            this.hourlyList = null;
+            this.barrier = barrier;
+        }
+    }
+
+    // tells the writer that no more days will be queued
+    private static final FetchedDay END_OF_STREAM = new FetchedDay(null);
+
+    private final MeasureBulkWriter bulkWriter;
+    private final ProgressHandler progress;
+    private final ExecutorService fetchPool;
+    private final BlockingQueue<FetchedDay> writeQueue;
+    private final Thread writerThread;
+    private final List<Future<?>> fetchTasks = new ArrayList<>();
+    // cities with weather written since the last awaitCompletion, their accuracy report is refreshed then
+    private final Set<City.CityName> weatherCities = ConcurrentHashMap.newKeySet();
+    // first error of the current run, taken (and cleared) by awaitCompletion
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    public IngestionPipeline(ProgressHandler progress) {
+        this(progress,
+                SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "fetchThreads", 4),
+                SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "writeQueueSize", 16));
+    }
+
+    public IngestionPipeline(ProgressHandler progress, int fetchThreads, int writeQueueSize) {
+        this.bulkWriter = new MeasureBulkWriter();
+        this.progress = progress;
+        this.fetchPool = Executors.newFixedThreadPool(fetchThreads);
+        this.writeQueue = new ArrayBlockingQueue<>(writeQueueSize);
+        this.writerThread = new Thread(this::writeLoop, "ingestion-writer");
+        this.writerThread.start();
+    }
+
+    /**
+     * Schedule fetch of a single day, the result will be written to the source collection by the writer thread
+     */
+    public void submit(MeasureSource source, City city, LocalDate day) {
+        MongoCollection<Document> collection = MongoDBManager.getInstance().getCollection(source.getAppCollection());
+        fetchTasks.add(fetchPool.submit(() -> {
+            if(failure.get() != null)
+                return; // do not waste requests if the job is already failed
+            try {
+                List<Document> hourlyList = source.fetch(city, day);
+                writeQueue.put(new FetchedDay(collection, city, day, source.getArrayName(), hourlyList));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }));
+    }
+
+    /**
+     * Schedule fetch of [startDate, endDate] as a single range request when the source supports it,
+     * otherwise as one fetch per day. Every day is still written and counted on progress separately.
+     */
+    public void submitRange(MeasureSource source, City city, LocalDate startDate, LocalDate endDate) {
+        if(!source.supportsRangeFetch()) {
+            for(LocalDate d = startDate; !d.isAfter(endDate); d = d.plusDays(1))
+                submit(source, city, d);
+            return;
+        }
+
+        MongoCollection<Document> collection = MongoDBManager.getInstance().getCollection(source.getAppCollection());
+        fetchTasks.add(fetchPool.submit(() -> {
+            if(failure.get() != null)
+                return;
+            try {
+                Map<LocalDate, List<Document>> days = source.fetchRange(city, startDate, endDate);
+                for(Map.Entry<LocalDate, List<Document>> entry : days.entrySet())
+                    writeQueue.put(new FetchedDay(collection, city, entry.getKey(), source.getArrayName(), entry.getValue()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }));
+    }
+
+    private void writeLoop() {
+        while(true) {
+            FetchedDay fetched;
+            try {
+                fetched = writeQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if(fetched == END_OF_STREAM)
+                return;
+            if(fetched.barrier != null) {
+                // everything queued before the barrier has been buffered, make it durable
+                try {
+                    if(failure.get() == null)
+                        bulkWriter.flush();
+                } catch (Exception e) {
+                    fail(e);
+                }
+                fetched.barrier.countDown();
+                continue;
+            }
+
+            // keep draining after a failure, otherwise fetch workers would stay blocked on a full queue
+            if(failure.get() != null)
+                continue;
+
+            try {
+                bulkWriter.add(fetched.collection, fetched.city, fetched.day, fetched.arrayName, fetched.hourlyList);
+                if(!BucketFormat.isPollution(fetched.arrayName))
+                    weatherCities.add(fetched.city.getCityName());
+                if(progress != null) progress.increaseProgress();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void fail(Exception e) {
+        failure.compareAndSet(null, e);
+    }
+
+    /**
+     * Wait until every day submitted so far has been fetched and its bulk write acknowledged, then refresh the
+     * data derived from the written days (see MeasureBulkWriter.refreshDerived) and the forecast accuracy report
+     * of the cities with new weather.
+     * The pipeline can be reused afterwards: after a failure, days of the failed run still buffered are dropped.
+     * @throws IOException the first fetch or write error, or the failure of a refresh
+     */
+    public void awaitCompletion() throws IOException {
+        try {
+            for(Future<?> f : fetchTasks)
+                f.get();
+            // all fetchers are done, so their days are already queued ahead of the barrier
+            CountDownLatch barrier = new CountDownLatch(1);
+            writeQueue.put(new FetchedDay(barrier));
+            barrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ingestion interrupted", e);
+        } catch (ExecutionException e) {
+            fail(e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+        } finally {
+            fetchTasks.clear();
+        }
+
+        // all workers are idle, the next run starts clean
+        Exception e = failure.getAndSet(null);
+        if(e != null) {
+            bulkWriter.discard();
+            throwFailure(e);
+        }
+
+        // once per run, the accuracy report reads the day rollups refreshed here
+        try {
+            bulkWriter.refreshDerived();
+        } catch (RuntimeException ex) {
+            throw new IOException("Refresh of rollups and availability failed", ex);
+        }
+
+        List<City.CityName> refreshed = new ArrayList<>(weatherCities);
+        weatherCities.removeAll(refreshed);
+        try {
+            ForecastAccuracyReport.getInstance().refreshCities(refreshed);
+        } catch (RuntimeException ex) {
+            // the days are stored anyway, a later run of the pipeline tries these cities again
+            weatherCities.addAll(refreshed);
+            throw new IOException("Forecast accuracy refresh failed", ex);
+        }
+    }
+
+    private static void throwFailure(Exception e) throws IOException {
+        if(e instanceof IOException)
+            throw (IOException)e;
+        else if(e instanceof RuntimeException)
+            throw (RuntimeException)e;
+        else
+            throw new IOException(e);
+    }
+
+    /**
+     * Stop workers. Days not yet awaited with awaitCompletion may be lost.
+     */
+    @Override
+    public void close() {
+        fetchPool.shutdownNow();
+        if(!writeQueue.offer(END_OF_STREAM))
+            writerThread.interrupt();
+        bulkWriter.shutdown();
+    }
+}
@@ -0,0 +1,257 @@
+package main.java.db;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import main.java.City;
+import main.java.gui.ProgressHandler;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Fleet-wide ingestion: splits a day range into (city, source, day) work units for every enabled city
+ * and runs them through an IngestionPipeline. Finished units are checkpointed in the ingestionjobs collection,
+ * so running again a job with the same name resumes it without fetching again completed units.
+ */
+public class IngestionScheduler {
+    public static class WorkUnit {
+        public final City city;
+        public final MeasureSource source;
+        public final LocalDate day;
+
+        public WorkUnit(City city, MeasureSource source, LocalDate day) {
+            this.city = city;
+            this.source = source;
+            this.day = day;
+        }
+
+        String key() {
+            return city.getCountry() + "|" + city.getCity() + "|" + source.getCollectionName() + "|" + day;
+        }
+    }
+
+    private final int concurrency;
+    private volatile boolean cancelled = false;
+    private ScheduledExecutorService timer = null;
+
+    public IngestionScheduler() {
+        this(SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "schedulerConcurrency", 8));
+    }
+
+    public IngestionScheduler(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Stop the running job after the current batch, completed units stay checkpointed
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public List<WorkUnit> splitWorkUnits(List<City> cities, LocalDate startDate, LocalDate endDate, Collection<MeasureSource> sources) {
+        List<WorkUnit> units = new ArrayList<>();
+        for(City city : cities)
+            for(MeasureSource source : sources)
+                for(LocalDate d = startDate; !d.isAfter(endDate); d = d.plusDays(1))
+                    if(source.isAvailable(d))
+                        units.add(new WorkUnit(city, source, d));
+        return units;
+    }
+
+    /**
+     * Work units of a gap plan, one per planned day
+     */
+    public List<WorkUnit> splitWorkUnits(List<GapPlanner.FetchRange> plan) {
+        List<WorkUnit> units = new ArrayList<>();
+        for(GapPlanner.FetchRange range : plan)
+            for(LocalDate d = range.startDate; !d.isAfter(range.endDate); d = d.plusDays(1))
+                units.add(new WorkUnit(range.city, range.source, d));
+        return units;
+    }
+
+    public int run(String jobName, LocalDate startDate, LocalDate endDate, Collection<MeasureSource> sources,
+                   ProgressHandler progress) throws IOException {
+        return run(jobName, startDate, endDate, sources, progress, false);
+    }
+
+    /**
+     * Ingest [startDate, endDate] for every enabled city
+     * @param jobName checkpoint name, use the same name to resume a cancelled or crashed run
+     * @param force if false, days already stored are skipped (see GapPlanner)
+     * @return number of units ingested by this run
+     * @throws IOException on fetch errors, units completed so far stay checkpointed
+     */
+    public int run(String jobName, LocalDate startDate, LocalDate endDate, Collection<MeasureSource> sources,
+                   ProgressHandler progress, boolean force) throws IOException {
+        cancelled = false;
+        MongoCollection<Document> jobs = MongoDBManager.getInstance().getCollection(MongoDBManager.AppCollection.INGESTION_JOBS);
+        jobs.createIndex(new Document("job", 1).append("unit", 1), new IndexOptions().unique(true).name("job_unit_unique"));
+
+        List<City> cities = MongoDBManager.getInstance().getCitiesByStatus(true);
+        HashSet<String> completed = loadCheckpoints(jobs, jobName);
+        List<WorkUnit> todo = new ArrayList<>();
+        List<GapPlanner.FetchRange> plan = new GapPlanner().plan(cities, startDate, endDate, sources, force);
+        for(WorkUnit unit : splitWorkUnits(plan))
+            if(!completed.contains(unit.key()))
+                todo.add(unit);
+
+        System.out.println("Job " + jobName + ": " + cities.size() + " cities, " + completed.size()
+                + " units already done, " + todo.size() + " to do");
+        if(progress != null) progress.setMaxProgress(todo.size());
+
+        int batchSize = concurrency * 4;
+        int done = 0;
+        long startTime = System.nanoTime();
+        try(IngestionPipeline pipeline = new IngestionPipeline(progress, concurrency, concurrency * 2)) {
+            for(int i=0; i<todo.size() && !cancelled; i+=batchSize) {
+                List<WorkUnit> batch = todo.subList(i, Math.min(i + batchSize, todo.size()));
+                submitBatch(pipeline, batch);
+                pipeline.awaitCompletion();
+
+                saveCheckpoints(jobs, jobName, batch);
+                done += batch.size();
+                reportRate(jobName, done, todo.size(), startTime, progress);
+            }
+        }
+
+        return done;
+    }
+
+    /**
+     * Submit a batch merging consecutive days of the same city and source into range fetches when possible.
+     * Units are split in city, source, day order, so consecutive days are adjacent.
+     */
+    private void submitBatch(IngestionPipeline pipeline, List<WorkUnit> batch) {
+        int i = 0;
+        while(i < batch.size()) {
+            WorkUnit first = batch.get(i);
+            int j = i + 1;
+            if(first.source.supportsRangeFetch()) {
+                while(j < batch.size() && batch.get(j).city == first.city && batch.get(j).source == first.source
+                        && batch.get(j).day.equals(batch.get(j - 1).day.plusDays(1)))
+                    j++;
+            }
+            pipeline.submitRange(first.source, first.city, first.day, batch.get(j - 1).day);
+            i = j;
+        }
+    }
+
+    private HashSet<String> loadCheckpoints(MongoCollection<Document> jobs, String jobName) {
+        HashSet<String> completed = new HashSet<>();
+        MongoCursor<Document> cursor = jobs.find(eq("job", jobName)).iterator();
+        try {
+            while (cursor.hasNext())
+                completed.add(cursor.next().getString("unit"));
+        } finally {
+            cursor.close();
+        }
+        return completed;
+    }
+
+    private void saveCheckpoints(MongoCollection<Document> jobs, String jobName, List<WorkUnit> units) {
+        List<Document> docs = new ArrayList<>();
+        LocalDateTime now = LocalDateTime.now();
+        for(WorkUnit unit : units)
+            docs.add(new Document("job", jobName).append("unit", unit.key())
+                    .append("country", unit.city.getCountry()).append("city", unit.city.getCity())
+                    .append("source", unit.source.getCollectionName()).append("day", unit.day)
+                    .append("completedAt", now));
+        try {
+            jobs.insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // units ingested again after a crash are already checkpointed, skip duplicates
+        }
+    }
+
+    private void reportRate(String jobName, int done, int total, long startTime, ProgressHandler progress) {
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        double unitsPerSecond = done / elapsedSeconds;
+        long etaSeconds = (long)((total - done) / unitsPerSecond);
+        String text = String.format("%d/%d units, %.2f units/s, ETA %dh %02dm %02ds",
+                done, total, unitsPerSecond, etaSeconds / 3600, (etaSeconds / 60) % 60, etaSeconds % 60);
+
+        System.out.println("Job " + jobName + ": " + text);
+        if(progress != null) progress.reportProgressText(text);
+    }
+
+    /**
+     * Start the periodic ingestion configured in the ingestion settings section, if periodic is set.
+     * Off by default: only one process per database should fetch the fleet, see main
+     */
+    public void startPeriodic() {
+        if(!SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "periodic", false))
+            return;
+        startPeriodicFromSettings();
+    }
+
+    private void startPeriodicFromSettings() {
+        startPeriodic(SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "periodicHours", 6),
+                SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "periodicPastDays", 2),
+                SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "periodicForecastDays", 7));
+    }
+
+    /**
+     * Every periodHours ingest past weather and pollution of the last days and the forecast for the next days.
+     * Each run has its own job name, so a run started later in the same day fetches again the days that are
+     * still changing; days already stored are skipped by the gap planner.
+     */
+    public synchronized void startPeriodic(long periodHours, int pastDays, int forecastDays) {
+        if(timer != null)
+            return;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ingestion-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> {
+            LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES);
+            LocalDate today = now.toLocalDate();
+            try {
+                run("periodic-" + now, today.minusDays(pastDays), today.plusDays(forecastDays),
+                        EnumSet.allOf(MeasureSource.class), null);
+                // after the accuracy report refreshed by the ingestion, so that forecasts it covers can be dropped
+                if(MeasureRetention.getInstance().isEnabled())
+                    MeasureRetention.getInstance().start();
+            } catch (Exception e) {
+                System.out.println("Periodic ingestion failed:");
+                e.printStackTrace();
+            }
+        }, 0, periodHours, TimeUnit.HOURS);
+    }
+
+    public synchronized void stopPeriodic() {
+        if(timer == null)
+            return;
+        cancel();
+        timer.shutdownNow();
+        timer = null;
+    }
+
+    /**
+     * java main.java.db.IngestionScheduler periodic: run the periodic ingestion of the settings until killed
+     * java main.java.db.IngestionScheduler start end: ingest the fleet in [start, end]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length == 1 && args[0].equals("periodic")) {
+            new IngestionScheduler().startPeriodicFromSettings();
+            // the scheduler thread is a daemon
+            Thread.currentThread().join();
+            return;
+        }
+        LocalDate start = LocalDate.parse(args[0]), end = LocalDate.parse(args[1]);
+        new IngestionScheduler().run("fleet-" + start + "-" + end, start, end, EnumSet.allOf(MeasureSource.class), null);
+    }
+}
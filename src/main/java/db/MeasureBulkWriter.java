@@ -0,0 +1,404 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import main.java.City;
+import main.java.fetch.FetchUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind buffer for hourly measures. Incoming hours are merged in memory per
+ * (collection, country, city, periodStart) bucket, so many days of the same week become a single update.
+ * Buffered buckets are flushed with one unordered bulkWrite per collection when maxPendingHours is reached,
+ * every maxDelayMillis, or when flush/close is called.
+ * With time-series storage (see MeasureStorage) the hours of a bucket are written as separate documents.
+ * Data derived from the written buckets (day availability, rollups, pollution forecasts) is brought up to date
+ * by refreshDerived, once per ingestion run instead of once per flush.
+ */
+public class MeasureBulkWriter implements AutoCloseable {
+    private static class BucketKey {
+        private final String namespace;
+        private final City.CityName cityName;
+        private final LocalDateTime periodStart;
+
+        BucketKey(String namespace, City.CityName cityName, LocalDateTime periodStart) {
+            this.namespace = namespace;
+            this.cityName = cityName;
+            this.periodStart = periodStart;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            BucketKey bucketKey = (BucketKey) o;
+            return namespace.equals(bucketKey.namespace) &&
+                    cityName.equals(bucketKey.cityName) &&
+                    periodStart.equals(bucketKey.periodStart);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(namespace, cityName, periodStart);
+        }
+    }
+
+    private static class Bucket {
+        final MongoCollection<Document> collection;
+        final City city;
+        final String arrayName;
+        final LocalDateTime periodStart, periodEnd;
+        // hour key (datetime, or [location, datetime] for pollution) -> hourly document, newest wins
+        final LinkedHashMap<Object, Document> hours = new LinkedHashMap<>();
+
+        Bucket(MongoCollection<Document> collection, City city, String arrayName, LocalDateTime[] period) {
+            this.collection = collection;
+            this.city = city;
+            this.arrayName = arrayName;
+            this.periodStart = period[0];
+            this.periodEnd = period[1];
+        }
+    }
+
+    private final int maxPendingHours;
+    private final BucketFormat.Layout layout = BucketFormat.getWriteLayout();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService timer;
+
+    private HashMap<BucketKey, Bucket> pending = new HashMap<>();
+    private int pendingHours = 0;
+
+    // written since the last refreshDerived, guarded by writtenLock
+    private final Object writtenLock = new Object();
+    private HashMap<MeasureSource, HashMap<City.CityName, HashSet<LocalDate>>> writtenDays = new HashMap<>();
+    private HashMap<MeasureSource, HashMap<City.CityName, HashSet<LocalDateTime>>> writtenWeeks = new HashMap<>();
+    private HashMap<City.CityName, City> forecastCities = new HashMap<>();
+    private volatile RuntimeException backgroundFailure = null;
+
+    public MeasureBulkWriter() {
+        this(SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "bulkMaxHours", 5000),
+                SettingsManager.MAINSETTINGS.getOrSetDefault("ingestion", "bulkMaxDelayMs", 2000));
+    }
+
+    public MeasureBulkWriter(int maxPendingHours, long maxDelayMillis) {
+        this.maxPendingHours = maxPendingHours;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "measure-bulk-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.scheduleWithFixedDelay(() -> {
+            try {
+                writePending();
+            } catch (RuntimeException e) {
+                backgroundFailure = e;
+            }
+        }, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static Object hourKey(String arrayName, Document hourDoc) {
+        if(BucketFormat.isPollution(arrayName))
+            return Arrays.asList(hourDoc.get("location"), hourDoc.get("datetime"));
+        return hourDoc.get("datetime");
+    }
+
+    /**
+     * Buffer hourly measures of a day. Flushes synchronously in the caller thread if the buffer is full.
+     */
+    public void add(MongoCollection<Document> collection, City city, LocalDate day, String arrayName, List<Document> hourlyList) {
+        LocalDateTime[] weekrange = FetchUtils.getWeekPeriod(day);
+        BucketKey key = new BucketKey(collection.getNamespace().getFullName(), city.getCityName(), weekrange[0]);
+
+        boolean full;
+        synchronized (this) {
+            Bucket bucket = pending.get(key);
+            if(bucket == null) {
+                bucket = new Bucket(collection, city, arrayName, weekrange);
+                pending.put(key, bucket);
+            }
+            for(Document hourDoc : hourlyList)
+                if(bucket.hours.put(hourKey(arrayName, hourDoc), hourDoc) == null)
+                    pendingHours++;
+            full = pendingHours >= maxPendingHours;
+        }
+
+        if(full)
+            writePending();
+    }
+
+    /**
+     * Write every buffered bucket and wait for the bulk writes to be acknowledged
+     * @throws RuntimeException also if a previous timed flush has failed
+     */
+    public void flush() {
+        writePending();
+
+        RuntimeException e = backgroundFailure;
+        backgroundFailure = null;
+        if(e != null)
+            throw e;
+    }
+
+    private void writePending() {
+        // flushes are serialized, so an older version of a bucket can never overwrite a newer one
+        synchronized (flushLock) {
+            HashMap<BucketKey, Bucket> toWrite;
+            synchronized (this) {
+                if(pending.isEmpty())
+                    return;
+                toWrite = pending;
+                pending = new HashMap<>();
+                pendingHours = 0;
+            }
+
+            // one unordered bulkWrite per collection, buckets are independent so order does not matter
+            boolean timeSeries = MeasureStorage.isTimeSeries();
+            ObjectId writeId = new ObjectId();
+            HashMap<String, List<WriteModel<Document>>> deletesByCollection = new HashMap<>();
+            HashMap<String, List<WriteModel<Document>>> operationsByCollection = new HashMap<>();
+            HashMap<String, MongoCollection<Document>> collections = new HashMap<>();
+            for(Map.Entry<BucketKey, Bucket> entry : toWrite.entrySet()) {
+                String namespace = entry.getKey().namespace;
+                Bucket bucket = entry.getValue();
+                collections.put(namespace, bucket.collection);
+                if(!operationsByCollection.containsKey(namespace)) {
+                    deletesByCollection.put(namespace, new ArrayList<>());
+                    operationsByCollection.put(namespace, new ArrayList<>());
+                }
+                if(timeSeries) {
+                    // time-series documents cannot be updated: hours are inserted again, then the versions written
+                    // by older flushes are deleted, so a rewritten hour is never missing (only doubled in between)
+                    for(Document hourDoc : bucket.hours.values())
+                        operationsByCollection.get(namespace).add(new InsertOneModel<>(
+                                MeasureStorage.timeSeriesDocument(bucket.city, bucket.arrayName, hourDoc, writeId)));
+                    deletesByCollection.get(namespace).add(new DeleteManyModel<>(MeasureStorage.timeSeriesOverwriteFilter(
+                            bucket.city, bucket.arrayName, bucket.hours.values(), writeId)));
+                } else
+                    operationsByCollection.get(namespace).add(bucketUpdate(bucket, layout));
+            }
+
+            prepareRollups(toWrite.values());
+            for(Map.Entry<String, List<WriteModel<Document>>> entry : operationsByCollection.entrySet()) {
+                collections.get(entry.getKey()).bulkWrite(entry.getValue(), new BulkWriteOptions().ordered(false));
+                System.out.println("Bulk flush of " + entry.getValue().size() + (timeSeries ? " hours" : " buckets")
+                        + " on " + entry.getKey());
+            }
+            // a failure before this point leaves doubled hours, deleted by the next rewrite of the same hours
+            for(Map.Entry<String, List<WriteModel<Document>>> entry : deletesByCollection.entrySet())
+                if(!entry.getValue().isEmpty())
+                    collections.get(entry.getKey()).bulkWrite(entry.getValue(), new BulkWriteOptions().ordered(false));
+
+            recordWritten(toWrite.values());
+        }
+    }
+
+    private static MeasureSource sourceOf(Bucket bucket) {
+        return MeasureSource.fromCollectionName(bucket.collection.getNamespace().getCollectionName());
+    }
+
+    private static HashMap<MeasureSource, HashMap<City.CityName, HashSet<LocalDateTime>>> weeksOf(Collection<Bucket> buckets) {
+        HashMap<MeasureSource, HashMap<City.CityName, HashSet<LocalDateTime>>> weeks = new HashMap<>();
+        for(Bucket bucket : buckets)
+            weeks.computeIfAbsent(sourceOf(bucket), s -> new HashMap<>())
+                    .computeIfAbsent(bucket.city.getCityName(), c -> new HashSet<>()).add(bucket.periodStart);
+        return weeks;
+    }
+
+    /**
+     * Rollup state is settled before raw hours are written (see MeasureRollups.getRawRange): the watermark is set
+     * if missing and the weeks are listed as pending until refreshDerived, or, when rollups are disabled here,
+     * the watermark is moved past the written weeks since they will not be rolled up
+     */
+    private static void prepareRollups(Collection<Bucket> buckets) {
+        for(Map.Entry<MeasureSource, HashMap<City.CityName, HashSet<LocalDateTime>>> entry : weeksOf(buckets).entrySet()) {
+            MeasureSource source = entry.getKey();
+            if(MeasureRollups.getInstance().isEnabled()) {
+                MeasureRollups.getInstance().ensureRolledUpSince(source);
+                MeasureRollups.getInstance().addPendingWeeks(source, entry.getValue());
+            } else {
+                // moving the watermark past the newest week moves it past the others too
+                LocalDateTime newest = null;
+                for(Set<LocalDateTime> cityWeeks : entry.getValue().values())
+                    for(LocalDateTime periodStart : cityWeeks)
+                        if(newest == null || periodStart.isAfter(newest))
+                            newest = periodStart;
+                MeasureRollups.getInstance().skipRollups(source, newest);
+            }
+        }
+    }
+
+    /**
+     * Remember what was written for the next refreshDerived
+     */
+    private void recordWritten(Collection<Bucket> buckets) {
+        synchronized (writtenLock) {
+            for(Bucket bucket : buckets) {
+                MeasureSource source = sourceOf(bucket);
+                HashSet<LocalDate> days = writtenDays.computeIfAbsent(source, s -> new HashMap<>())
+                        .computeIfAbsent(bucket.city.getCityName(), c -> new HashSet<>());
+                for(Document hourDoc : bucket.hours.values())
+                    days.add(hourDoc.get("datetime", LocalDateTime.class).toLocalDate());
+                writtenWeeks.computeIfAbsent(source, s -> new HashMap<>())
+                        .computeIfAbsent(bucket.city.getCityName(), c -> new HashSet<>()).add(bucket.periodStart);
+                // cities with new forecast weather or pollution need their pollution forecast recomputed
+                if(source == MeasureSource.FORECAST_WEATHER || source == MeasureSource.POLLUTION)
+                    forecastCities.put(bucket.city.getCityName(), bucket.city);
+            }
+        }
+    }
+
+    /**
+     * Bring data derived from the buckets written since the last call up to date: day availability,
+     * rollups of the written weeks and of their months (each once), pollution forecasts.
+     * Rollups of weeks left pending by a client that stopped before refreshing are recomputed too.
+     * Call it after flush, once per ingestion run: per flush it would serialize these aggregations behind
+     * the writes.
+     */
+    public void refreshDerived() {
+        HashMap<MeasureSource, HashMap<City.CityName, HashSet<LocalDate>>> days;
+        HashMap<MeasureSource, HashMap<City.CityName, HashSet<LocalDateTime>>> weeks;
+        HashMap<City.CityName, City> cities;
+        synchronized (writtenLock) {
+            days = writtenDays;
+            weeks = writtenWeeks;
+            cities = forecastCities;
+            writtenDays = new HashMap<>();
+            writtenWeeks = new HashMap<>();
+            forecastCities = new HashMap<>();
+        }
+
+        try {
+            if(!days.isEmpty())
+                DateAvailability.getInstance().markDays(days);
+            if(MeasureRollups.getInstance().isEnabled())
+                for(MeasureSource source : weeks.keySet())
+                    refreshRollups(source, weeks.get(source));
+            if(!cities.isEmpty())
+                PollutionForecastStore.getInstance().citiesUpdated(cities.values());
+        } catch (RuntimeException e) {
+            // keep the keys for the next call, refreshing them twice is harmless
+            synchronized (writtenLock) {
+                days.forEach((source, cityDays) -> cityDays.forEach((city, set) ->
+                        writtenDays.computeIfAbsent(source, s -> new HashMap<>()).computeIfAbsent(city, c -> new HashSet<>()).addAll(set)));
+                weeks.forEach((source, cityWeeks) -> cityWeeks.forEach((city, set) ->
+                        writtenWeeks.computeIfAbsent(source, s -> new HashMap<>()).computeIfAbsent(city, c -> new HashSet<>()).addAll(set)));
+                cities.forEach(forecastCities::putIfAbsent);
+            }
+            throw e;
+        }
+    }
+
+    private static void refreshRollups(MeasureSource source, Map<City.CityName, ? extends Set<LocalDateTime>> written) {
+        HashMap<City.CityName, Set<LocalDateTime>> weeks = MeasureRollups.getInstance().getPendingWeeks(source);
+        for(Map.Entry<City.CityName, ? extends Set<LocalDateTime>> entry : written.entrySet())
+            weeks.computeIfAbsent(entry.getKey(), c -> new HashSet<>()).addAll(entry.getValue());
+
+        HashMap<City.CityName, HashSet<YearMonth>> months = new HashMap<>();
+        for(Map.Entry<City.CityName, Set<LocalDateTime>> entry : weeks.entrySet())
+            for(LocalDateTime periodStart : entry.getValue()) {
+                MeasureRollups.getInstance().refreshBucket(source, entry.getKey(), periodStart);
+                HashSet<YearMonth> cityMonths = months.computeIfAbsent(entry.getKey(), c -> new HashSet<>());
+                cityMonths.add(YearMonth.from(periodStart));
+                cityMonths.add(YearMonth.from(FetchUtils.getWeekPeriod(periodStart)[1]));
+            }
+        for(Map.Entry<City.CityName, HashSet<YearMonth>> entry : months.entrySet())
+            for(YearMonth month : entry.getValue())
+                MeasureRollups.getInstance().refreshMonth(source, entry.getKey(), month);
+        MeasureRollups.getInstance().removePendingWeeks(source, weeks);
+    }
+
+    /**
+     * Filter of the upsert of a bucket, with the full shard key as sharded upserts require
+     */
+    static Document bucketFilter(City.CityName city, LocalDateTime periodStart, LocalDateTime periodEnd) {
+        return new Document("city", city.getCity())
+                .append("country", city.getCountry())
+                .append("periodStart", periodStart)
+                .append("periodEnd", periodEnd);
+    }
+
+    /**
+     * Build a single upsert replacing the buffered hours of a bucket. The update pipeline keeps the stored hours
+     * that are not being rewritten and appends the new ones, so no separate $pull/$push round is needed.
+     * Buckets stored in either layout are rewritten in the given one.
+     */
+    private static UpdateOneModel<Document> bucketUpdate(Bucket bucket, BucketFormat.Layout layout) {
+        String arrayName = bucket.arrayName;
+        List<Document> hours = new ArrayList<>(bucket.hours.values());
+
+        Object storedKey;
+        List<Object> newKeys = new ArrayList<>();
+        if(BucketFormat.isPollution(arrayName)) {
+            storedKey = Arrays.asList("$$m.location", "$$m.datetime");
+            for(Document h : hours)
+                newKeys.add(Arrays.asList(h.get("location"), h.get("datetime")));
+        } else {
+            storedKey = "$$m.datetime";
+            for(Document h : hours)
+                newKeys.add(h.get("datetime"));
+        }
+
+        Document keptHours = new Document("$filter", new Document("input",
+                new Document("$ifNull", Arrays.asList("$" + arrayName, Collections.emptyList())))
+                .append("as", "m")
+                .append("cond", new Document("$not", Collections.singletonList(
+                        new Document("$in", Arrays.asList(storedKey, new Document("$literal", newKeys)))))));
+
+        Document coordinates = new Document("type", "point").append("coordinates", bucket.city.getCoords().asList());
+        Document setStage = new Document("$set", new Document()
+                .append("coordinates", new Document("$ifNull", Arrays.asList("$coordinates", new Document("$literal", coordinates))))
+                .append(arrayName, new Document("$concatArrays", Arrays.asList(keptHours, new Document("$literal", hours)))));
+
+        Document filterDoc = bucketFilter(bucket.city.getCityName(), bucket.periodStart, bucket.periodEnd);
+
+        // stored hours are merged as rows, then written back in the configured layout
+        List<Document> updatePipeline = new ArrayList<>();
+        updatePipeline.add(new Document("$set", new Document(arrayName, BucketFormat.rowsExpression(arrayName))));
+        updatePipeline.add(setStage);
+        updatePipeline.addAll(BucketFormat.storeStages(arrayName, layout));
+        return new UpdateOneModel<>(filterDoc, updatePipeline, new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Flush remaining buckets, refresh derived data and stop the background timer
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        flush();
+        refreshDerived();
+    }
+
+    /**
+     * Drop buffered buckets and the failure of a previous timed flush, if any
+     */
+    public void discard() {
+        synchronized (this) {
+            pending.clear();
+            pendingHours = 0;
+        }
+        backgroundFailure = null;
+    }
+
+    /**
+     * Stop the background timer discarding buffered buckets
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        discard();
+    }
+}
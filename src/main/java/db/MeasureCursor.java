@@ -0,0 +1,89 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCursor;
+import main.java.measures.MeasureValue;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Streaming result of a measure query. Values are read from the rollup collections batch by batch
+ * (sorted by city and datetime) and merged in order with the values of the range served from raw buckets
+ * (see MeasureRollups.getRawRange), which are read all together on first use.
+ * Must be closed if not fully consumed.
+ */
+public class MeasureCursor implements Iterator<MeasureValue>, AutoCloseable {
+    // same order as the rollup cursor: country, city, datetime
+    private static final Comparator<MeasureValue> ORDER = Comparator.<MeasureValue, String>comparing(m -> m.cityName.getCountry())
+            .thenComparing(m -> m.cityName.getCity())
+            .thenComparing(m -> m.datetime);
+
+    private MongoCursor<Document> rollupCursor;
+    private Supplier<List<MeasureValue>> rawQuery;
+    private Iterator<MeasureValue> rawIterator = null;
+    private MeasureValue nextRollup = null, nextRaw = null;
+
+    /**
+     * @param rollupCursor rollup documents sorted by country, city and t, null for none
+     * @param rawQuery values read from raw buckets, null for none
+     */
+    MeasureCursor(MongoCursor<Document> rollupCursor, Supplier<List<MeasureValue>> rawQuery) {
+        this.rollupCursor = rollupCursor;
+        this.rawQuery = rawQuery;
+    }
+
+    private MeasureValue readRollup() {
+        while(rollupCursor != null && rollupCursor.hasNext()) {
+            MeasureValue m = MeasureRollups.toMeasureValue(rollupCursor.next());
+            if(m != null)
+                return m;
+        }
+        if(rollupCursor != null) {
+            rollupCursor.close();
+            rollupCursor = null;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(rawQuery != null) {
+            List<MeasureValue> raw = new ArrayList<>(rawQuery.get());
+            raw.sort(ORDER);
+            rawIterator = raw.iterator();
+            rawQuery = null;
+        }
+        if(nextRollup == null)
+            nextRollup = readRollup();
+        if(nextRaw == null && rawIterator != null && rawIterator.hasNext())
+            nextRaw = rawIterator.next();
+        return nextRollup != null || nextRaw != null;
+    }
+
+    @Override
+    public MeasureValue next() {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        MeasureValue result;
+        if(nextRaw == null || (nextRollup != null && ORDER.compare(nextRollup, nextRaw) <= 0)) {
+            result = nextRollup;
+            nextRollup = null;
+        } else {
+            result = nextRaw;
+            nextRaw = null;
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if(rollupCursor != null) {
+            rollupCursor.close();
+            rollupCursor = null;
+        }
+        rawQuery = null;
+        rawIterator = null;
+        nextRollup = nextRaw = null;
+    }
+}
@@ -0,0 +1,444 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import main.java.City;
+import main.java.measures.CategoricalMeasureValue;
+import main.java.measures.MeasureValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.unwind;
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Resample measures of any measure collection to a time granularity with an aggregation function,
+ * generating a single pipeline. Datetimes are floored to the start of their time bucket, so readings taken at
+ * odd minutes fall in the right hour. Categorical measures (any string valued measure, e.g. sky) are counted in
+ * the database and returned as CategoricalMeasureValue with their most frequent value and category histogram.
+ * AVG, MIN and MAX at hour granularity or coarser are computed from the rollup collections; week uses day rollups.
+ */
+public class MeasureResampler {
+    private static MeasureResampler INSTANCE = new MeasureResampler();
+    public static MeasureResampler getInstance() {
+        return INSTANCE;
+    }
+
+    public enum Granularity {
+        MINUTE_15, HOUR, DAY, WEEK, MONTH;
+
+        /**
+         * Expression flooring datetime to the start of its bucket (weeks start on monday)
+         */
+        Document bucketStart(String datetime) {
+            if(this == WEEK)
+                return new Document("$dateFromParts", new Document("isoWeekYear", new Document("$isoWeekYear", datetime))
+                        .append("isoWeek", new Document("$isoWeek", datetime)).append("isoDayOfWeek", 1));
+
+            Document parts = new Document("year", new Document("$year", datetime))
+                    .append("month", new Document("$month", datetime));
+            if(this != MONTH)
+                parts.append("day", new Document("$dayOfMonth", datetime));
+            if(this == HOUR || this == MINUTE_15)
+                parts.append("hour", new Document("$hour", datetime));
+            if(this == MINUTE_15) {
+                Document minute = new Document("$minute", datetime);
+                parts.append("minute", new Document("$subtract", Arrays.asList(minute,
+                        new Document("$mod", Arrays.asList(minute, 15)))));
+            }
+            return new Document("$dateFromParts", parts);
+        }
+
+        /**
+         * Start of the bucket of datetime, in Java
+         */
+        LocalDateTime floor(LocalDateTime datetime) {
+            switch (this) {
+                case MINUTE_15: return datetime.truncatedTo(ChronoUnit.HOURS).plusMinutes(datetime.getMinute() / 15 * 15);
+                case HOUR: return datetime.truncatedTo(ChronoUnit.HOURS);
+                case DAY: return datetime.truncatedTo(ChronoUnit.DAYS);
+                case WEEK: return datetime.toLocalDate().with(DayOfWeek.MONDAY).atStartOfDay();
+                default: return datetime.toLocalDate().withDayOfMonth(1).atStartOfDay();
+            }
+        }
+
+        /**
+         * This granularity, or min if this is finer
+         */
+        Granularity atLeast(Granularity min) {
+            return (compareTo(min) >= 0) ? this : min;
+        }
+
+        /**
+         * Finest rollup resolution this granularity can be computed from, null if none
+         */
+        MeasureRollups.Resolution rollupResolution() {
+            switch (this) {
+                case HOUR: return MeasureRollups.Resolution.HOUR;
+                case DAY: case WEEK: return MeasureRollups.Resolution.DAY;
+                case MONTH: return MeasureRollups.Resolution.MONTH;
+                default: return null;
+            }
+        }
+    }
+
+    public enum Aggregation {
+        AVG, MIN, MAX, LAST, MODE
+    }
+
+    /**
+     * How raw buckets are expanded: UNWIND unwinds the hour array and then the measurements of each hour,
+     * ARRAY_OPERATORS trims each bucket to the hours in range and the requested measures with $filter/$map
+     * and unwinds a single flat array of already projected measures.
+     * UNWIND is the default until PipelineTests shows the other mode faster on real data: no measurement has been
+     * taken yet, run PipelineTests against a populated database and make the faster mode the default
+     * (resampler.pipelineMode overrides it meanwhile).
+     */
+    public enum PipelineMode {
+        UNWIND, ARRAY_OPERATORS
+    }
+
+    private static final List<String> NUMERIC_TYPES = Arrays.asList("double", "int", "long", "decimal");
+
+    private final PipelineMode defaultMode;
+
+    private MeasureResampler() {
+        defaultMode = PipelineMode.valueOf(SettingsManager.MAINSETTINGS.getOrSetDefault("resampler", "pipelineMode",
+                PipelineMode.UNWIND.name()));
+    }
+
+    public PipelineMode getDefaultMode() {
+        return defaultMode;
+    }
+
+    private static Document ifNumber(String field, Object then, Object otherwise) {
+        Document isNumber = new Document("$in", Arrays.asList(new Document("$type", field), NUMERIC_TYPES));
+        return new Document("$cond", Arrays.asList(isNumber, then, otherwise));
+    }
+
+    /**
+     * Pipeline on raw measures, first grouping by time bucket and value (categorical values, or every value
+     * for MODE) to count occurrences
+     * @param measures measure names to keep, null for all
+     */
+    List<Bson> rawPipeline(MeasureSource source, Granularity granularity, Aggregation aggregation,
+                           LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities,
+                           Collection<String> measures, PipelineMode mode) {
+        List<City.CityName> cityNames = new ArrayList<>();
+        for(City c : cities)
+            cityNames.add(c.getCityName());
+
+        List<Bson> pipeline = new ArrayList<>(MeasureStorage.sourceStages(source, cityNames, startDate, endDate));
+        if(mode == PipelineMode.ARRAY_OPERATORS)
+            pipeline.addAll(flatMeasureStages(source, granularity, startDate, endDate, measures));
+        else
+            pipeline.addAll(unwindMeasureStages(source, granularity, startDate, endDate, measures));
+
+        Object key = (aggregation == Aggregation.MODE) ? "$m.v"
+                : new Document("$cond", Arrays.asList(new Document("$eq", Arrays.asList(new Document("$type", "$m.v"), "string")), "$m.v", null));
+        pipeline.add(new Document("$group", new Document("_id", new Document("country", "$country").append("city", "$city")
+                .append("t", "$m.t").append("name", "$m.name").append("unit", "$m.unit").append("k", key))
+                .append("count", new Document("$sum", 1))
+                .append("n", new Document("$sum", ifNumber("$m.v", 1, 0)))
+                .append("sum", new Document("$sum", ifNumber("$m.v", "$m.v", null)))
+                .append("min", new Document("$min", ifNumber("$m.v", "$m.v", null)))
+                .append("max", new Document("$max", ifNumber("$m.v", "$m.v", null)))
+                // documents compare field by field, so this is the value with the latest datetime
+                .append("last", new Document("$max", new Document("d", "$m.d").append("v", "$m.v")))));
+        pipeline.addAll(finalStages(aggregation));
+        return pipeline;
+    }
+
+    private static Document measureOf(Granularity granularity, String hour, String measurement) {
+        return new Document("t", granularity.bucketStart(hour + ".datetime")).append("d", hour + ".datetime")
+                .append("name", measurement + ".name").append("unit", measurement + ".unit")
+                .append("v", measurement + ".value");
+    }
+
+    /**
+     * Double $unwind: hours, then measurements of each hour, projected to { country, city, m: { t, d, name, unit, v } }
+     */
+    private static List<Bson> unwindMeasureStages(MeasureSource source, Granularity granularity,
+                                                  LocalDateTime startDate, LocalDateTime endDate, Collection<String> measures) {
+        String arrayName = source.getArrayName();
+        List<Bson> stages = new ArrayList<>();
+        stages.add(unwind("$" + arrayName));
+        stages.add(match(and(gte(arrayName + ".datetime", startDate), lte(arrayName + ".datetime", endDate))));
+        stages.add(unwind("$" + arrayName + ".measurements"));
+        if(measures != null)
+            stages.add(match(in(arrayName + ".measurements.name", measures)));
+        stages.add(new Document("$project", new Document("_id", 0).append("country", 1).append("city", 1)
+                .append("m", measureOf(granularity, "$" + arrayName, "$" + arrayName + ".measurements"))));
+        return stages;
+    }
+
+    /**
+     * Each bucket is reduced to a flat array of the projected measures of the hours in range, then unwound once.
+     * The array is built in a single pass, without copies: hours are mapped to arrays of measures, then position
+     * i of the flat array is measure (i mod w) of hour (i div w), w being the largest number of measures of an hour,
+     * and the positions past the measures of shorter hours are filtered out.
+     */
+    private static List<Bson> flatMeasureStages(MeasureSource source, Granularity granularity,
+                                                LocalDateTime startDate, LocalDateTime endDate, Collection<String> measures) {
+        Document hoursInRange = new Document("$filter", new Document("input", "$" + source.getArrayName()).append("as", "h")
+                .append("cond", new Document("$and", Arrays.asList(
+                        new Document("$gte", Arrays.asList("$$h.datetime", startDate)),
+                        new Document("$lte", Arrays.asList("$$h.datetime", endDate))))));
+        Object hourMeasures = (measures == null) ? "$$h.measurements"
+                : new Document("$filter", new Document("input", "$$h.measurements").append("as", "x")
+                        .append("cond", new Document("$in", Arrays.asList("$$x.name", new ArrayList<>(measures)))));
+        Document measuresByHour = new Document("$map", new Document("input", hoursInRange).append("as", "h")
+                .append("in", new Document("$map", new Document("input", hourMeasures).append("as", "x")
+                        .append("in", measureOf(granularity, "$$h", "$$x")))));
+
+        Document width = new Document("$ifNull", Arrays.asList(new Document("$max", new Document("$map",
+                new Document("input", "$$hours").append("as", "ms").append("in", new Document("$size", "$$ms")))), 0));
+        Document measureAt = new Document("$arrayElemAt", Arrays.asList(
+                new Document("$arrayElemAt", Arrays.asList("$$hours",
+                        new Document("$floor", new Document("$divide", Arrays.asList("$$i", "$$w"))))),
+                new Document("$mod", Arrays.asList("$$i", "$$w"))));
+        // out of range positions are missing, which $map turns into null
+        Document flat = new Document("$filter", new Document("input", new Document("$map", new Document("input",
+                new Document("$range", Arrays.asList(0, new Document("$multiply", Arrays.asList(new Document("$size", "$$hours"), "$$w")))))
+                .append("as", "i").append("in", measureAt)))
+                .append("as", "m").append("cond", new Document("$ne", Arrays.asList("$$m", null))));
+        Document flatMeasures = new Document("$let", new Document("vars", new Document("hours", measuresByHour))
+                .append("in", new Document("$let", new Document("vars", new Document("w", width)).append("in", flat))));
+
+        return Arrays.asList(
+                new Document("$project", new Document("_id", 0).append("country", 1).append("city", 1)
+                        .append("m", flatMeasures)),
+                unwind("$m"));
+    }
+
+    /**
+     * Pipeline on rollups: numeric fields are taken once per rollup, histograms are unwound and summed by value
+     */
+    List<Bson> rollupPipeline(Granularity granularity, Aggregation aggregation, LocalDateTime startDate,
+                              LocalDateTime endDate, Collection<City> cities, Collection<String> measures) {
+        Document first = new Document("$lte", Arrays.asList("$hi", 0));
+
+        List<Bson> pipeline = new ArrayList<>();
+        Bson filter = and(MongoDBManager.cityFilter(cities), gte("t", startDate), lte("t", endDate));
+        pipeline.add(match(measures == null ? filter : and(filter, in("name", measures))));
+        pipeline.add(new Document("$unwind", new Document("path", "$hist")
+                .append("preserveNullAndEmptyArrays", true).append("includeArrayIndex", "hi")));
+        pipeline.add(new Document("$group", new Document("_id", new Document("country", "$country").append("city", "$city")
+                .append("t", granularity.bucketStart("$t")).append("name", "$name").append("unit", "$unit")
+                .append("k", "$hist.v"))
+                .append("count", new Document("$sum", "$hist.n"))
+                .append("n", new Document("$sum", new Document("$cond", Arrays.asList(first, "$n", 0))))
+                .append("sum", new Document("$sum", new Document("$cond", Arrays.asList(first, "$sum", 0))))
+                .append("min", new Document("$min", "$min"))
+                .append("max", new Document("$max", "$max"))));
+        pipeline.addAll(finalStages(aggregation));
+        return pipeline;
+    }
+
+    /**
+     * Stages shared by raw and rollup pipelines, from (bucket, value) groups to
+     * { country, city, t, name, unit, value } sorted by city, datetime and measure
+     */
+    private static List<Bson> finalStages(Aggregation aggregation) {
+        Document histogram = new Document("$filter", new Document("input", "$hist").append("as", "h")
+                .append("cond", new Document("$ne", Arrays.asList("$$h.v", null))));
+        // most frequent value, ties broken by the smallest value
+        Document mode = new Document("$let", new Document("vars", new Document("best", new Document("$reduce",
+                new Document("input", histogram)
+                        .append("initialValue", new Document("v", null).append("n", -1))
+                        .append("in", new Document("$cond", Arrays.asList(new Document("$or", Arrays.asList(
+                                new Document("$gt", Arrays.asList("$$this.n", "$$value.n")),
+                                new Document("$and", Arrays.asList(
+                                        new Document("$eq", Arrays.asList("$$this.n", "$$value.n")),
+                                        new Document("$lt", Arrays.asList("$$this.v", "$$value.v")))))),
+                                "$$this", "$$value"))))))
+                .append("in", "$$best.v"));
+
+        Object numeric;
+        switch (aggregation) {
+            case MIN: numeric = "$min"; break;
+            case MAX: numeric = "$max"; break;
+            case LAST: numeric = "$last.v"; break;
+            default: numeric = new Document("$divide", Arrays.asList("$sum", "$n"));
+        }
+        Object value = (aggregation == Aggregation.MODE) ? mode
+                : new Document("$cond", Arrays.asList(new Document("$gt", Arrays.asList("$n", 0)), numeric, mode));
+
+        return Arrays.asList(
+                new Document("$group", new Document("_id", new Document("country", "$_id.country").append("city", "$_id.city")
+                        .append("t", "$_id.t").append("name", "$_id.name").append("unit", "$_id.unit"))
+                        .append("n", new Document("$sum", "$n"))
+                        .append("sum", new Document("$sum", "$sum"))
+                        .append("min", new Document("$min", "$min"))
+                        .append("max", new Document("$max", "$max"))
+                        .append("last", new Document("$max", "$last"))
+                        .append("hist", new Document("$push", new Document("v", "$_id.k").append("n", "$count")))),
+                new Document("$project", new Document("_id", 0)
+                        .append("country", "$_id.country").append("city", "$_id.city").append("t", "$_id.t")
+                        .append("name", "$_id.name").append("unit", "$_id.unit").append("value", value)
+                        // categorical measures: category counts, only the histogram crosses the wire, not the hours
+                        .append("hist", new Document("$cond", Arrays.asList(
+                                new Document("$gt", Arrays.asList("$n", 0)), "$$REMOVE", histogram)))),
+                new Document("$sort", new Document("country", 1).append("city", 1).append("t", 1).append("name", 1)));
+    }
+
+    /**
+     * [{ v, n }] category counts to a map
+     */
+    static HashMap<String, Long> toHistogram(List<Document> hist) {
+        HashMap<String, Long> histogram = new HashMap<>();
+        for(Document h : hist)
+            if(h.get("v") instanceof String)
+                histogram.merge(h.getString("v"), ((Number)h.get("n")).longValue(), Long::sum);
+        return histogram;
+    }
+
+    private static void read(MongoCollection<Document> collection, List<Bson> pipeline,
+                             HashMap<City.CityName, ArrayList<MeasureValue>> result) {
+        MongoCursor<Document> cursor = collection.aggregate(pipeline).allowDiskUse(true).iterator();
+        try {
+            while (cursor.hasNext()) {
+                Document d = cursor.next();
+                Object value = d.get("value");
+                if(value == null)
+                    continue;
+                if(value instanceof Number)
+                    value = ((Number)value).doubleValue();
+
+                City.CityName cityName = new City.CityName(d.getString("country"), d.getString("city"));
+                if(!result.containsKey(cityName))
+                    result.put(cityName, new ArrayList<>());
+                List<Document> hist = d.getList("hist", Document.class);
+                if(value instanceof String && hist != null)
+                    result.get(cityName).add(new CategoricalMeasureValue(d.get("t", LocalDateTime.class), cityName,
+                            d.getString("name"), (String)value, d.getString("unit"), toHistogram(hist)));
+                else
+                    result.get(cityName).add(new MeasureValue(d.get("t", LocalDateTime.class), cityName,
+                            d.getString("name"), value, d.getString("unit")));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean fromRollups(Granularity granularity, Aggregation aggregation) {
+        return MeasureRollups.getInstance().isEnabled() && granularity.rollupResolution() != null
+                && (aggregation == Aggregation.AVG || aggregation == Aggregation.MIN || aggregation == Aggregation.MAX);
+    }
+
+    private void readRollups(MeasureSource source, Granularity granularity, Aggregation aggregation,
+                             LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities,
+                             Collection<String> measures, HashMap<City.CityName, ArrayList<MeasureValue>> result) {
+        MeasureRollups.Resolution resolution = granularity.rollupResolution();
+        LocalDateTime from = (resolution == MeasureRollups.Resolution.HOUR) ? startDate.truncatedTo(ChronoUnit.HOURS)
+                : (resolution == MeasureRollups.Resolution.DAY) ? startDate.toLocalDate().atStartOfDay()
+                : startDate.toLocalDate().withDayOfMonth(1).atStartOfDay();
+        read(MeasureRollups.getInstance().getCollection(source, resolution),
+                rollupPipeline(granularity, aggregation, from, endDate, cities, measures), result);
+    }
+
+    /**
+     * Measures of many cities in [startDate, endDate] resampled to granularity with one pipeline
+     * (plus one on raw buckets for hours before the rollup watermark).
+     * Ranges compacted by MeasureRetention are read from the rollups still kept, at day granularity at most before
+     * the hour rollups start and hour granularity at most before the raw hours start; there LAST is answered
+     * with AVG and MODE only for categorical measures.
+     * @param measures measure names to return, null for all
+     */
+    public HashMap<City.CityName, ArrayList<MeasureValue>> resample(MeasureSource source, Granularity granularity,
+                                                                    Aggregation aggregation, LocalDateTime startDate,
+                                                                    LocalDateTime endDate, Collection<City> cities,
+                                                                    Collection<String> measures) {
+        HashMap<City.CityName, ArrayList<MeasureValue>> result = new HashMap<>();
+        if(cities.isEmpty())
+            return result;
+
+        boolean fromRollups = fromRollups(granularity, aggregation);
+        MeasureRetention retention = MeasureRetention.getInstance();
+        if(retention.isEnabled() && (!fromRollups || granularity.rollupResolution() == MeasureRollups.Resolution.HOUR)) {
+            Aggregation summary = (aggregation == Aggregation.LAST) ? Aggregation.AVG : aggregation;
+            LocalDateTime hourStart = granularity.floor(retention.getHourRollupStart());
+            if(startDate.isBefore(hourStart)) {
+                readRollups(source, granularity.atLeast(Granularity.DAY), summary, startDate,
+                        min(endDate, hourStart.minusSeconds(1)), cities, measures, result);
+                startDate = hourStart;
+            }
+            LocalDateTime rawStart = granularity.floor(retention.getRawStart(source));
+            if(!fromRollups && startDate.isBefore(rawStart)) {
+                readRollups(source, granularity.atLeast(Granularity.HOUR), summary, startDate,
+                        min(endDate, rawStart.minusSeconds(1)), cities, measures, result);
+                startDate = rawStart;
+            }
+            if(startDate.isAfter(endDate))
+                return result;
+        }
+
+        // the range before the rollup watermark (see MeasureRollups.getRawRange) is read from raw buckets
+        LocalDateTime rawFrom = startDate, rawTo = endDate;
+        if(fromRollups) {
+            LocalDateTime[] rawRange = MeasureRollups.getInstance().getRawRange(source, granularity.rollupResolution());
+            if(rawRange == null) {
+                readRollups(source, granularity, aggregation, startDate, endDate, cities, measures, result);
+                return result;
+            }
+            if(rawRange[0] != null && rawRange[0].isAfter(rawFrom))
+                rawFrom = rawRange[0];
+            if(rawRange[1] != null && rawRange[1].minusSeconds(1).isBefore(rawTo))
+                rawTo = rawRange[1].minusSeconds(1);
+            if(rawFrom.isAfter(rawTo)) {
+                readRollups(source, granularity, aggregation, startDate, endDate, cities, measures, result);
+                return result;
+            }
+            if(startDate.isBefore(rawFrom))
+                readRollups(source, granularity, aggregation, startDate, rawFrom.minusSeconds(1), cities, measures, result);
+        }
+
+        // older tiers come first
+        for(Map.Entry<City.CityName, ArrayList<MeasureValue>> entry : rawResample(source, granularity, aggregation,
+                rawFrom, rawTo, cities, measures, defaultMode).entrySet())
+            if(result.containsKey(entry.getKey()))
+                result.get(entry.getKey()).addAll(entry.getValue());
+            else
+                result.put(entry.getKey(), entry.getValue());
+
+        if(fromRollups && rawTo.isBefore(endDate))
+            readRollups(source, granularity, aggregation, rawTo.plusSeconds(1), endDate, cities, measures, result);
+        return result;
+    }
+
+    private static LocalDateTime min(LocalDateTime a, LocalDateTime b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    public HashMap<City.CityName, ArrayList<MeasureValue>> resample(MeasureSource source, Granularity granularity,
+                                                                    Aggregation aggregation, LocalDateTime startDate,
+                                                                    LocalDateTime endDate, Collection<City> cities) {
+        return resample(source, granularity, aggregation, startDate, endDate, cities, null);
+    }
+
+    /**
+     * Resample from raw buckets only, ignoring rollups
+     */
+    HashMap<City.CityName, ArrayList<MeasureValue>> rawResample(MeasureSource source, Granularity granularity,
+                                                                Aggregation aggregation, LocalDateTime startDate,
+                                                                LocalDateTime endDate, Collection<City> cities,
+                                                                Collection<String> measures, PipelineMode mode) {
+        HashMap<City.CityName, ArrayList<MeasureValue>> result = new HashMap<>();
+        if(!cities.isEmpty())
+            read(MongoDBManager.getInstance().getCollection(source.getAppCollection()),
+                    rawPipeline(source, granularity, aggregation, startDate, endDate, cities, measures, mode), result);
+        return result;
+    }
+
+    HashMap<City.CityName, ArrayList<MeasureValue>> rawResample(MeasureSource source, Granularity granularity,
+                                                                Aggregation aggregation, LocalDateTime startDate,
+                                                                LocalDateTime endDate, Collection<City> cities) {
+        return rawResample(source, granularity, aggregation, startDate, endDate, cities, null, defaultMode);
+    }
+}
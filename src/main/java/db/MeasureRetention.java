@@ -0,0 +1,250 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.WriteModel;
+import main.java.City;
+import main.java.fetch.FetchUtils;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Age based tiering of measures, configured in the retention settings section:
+ * - raw hours are kept for rawDays, then their weeks are compacted: rollups of the week are completed and the raw
+ *   bucket (or hour documents) deleted, so only hour, day and month rollups are left;
+ * - hour rollups are kept for hourRollupDays (at least rawDays), day and month rollups forever;
+ * - forecast weeks are dropped after forecastDays once the forecast accuracy report of their city covers them,
+ *   reliability is computed from day rollups so it is not affected.
+ * Readers choose the tier from getRawStart() and getHourRollupStart(): compacted ranges are served from rollups
+ * at the finest resolution still kept. Needs rollups enabled.
+ */
+public class MeasureRetention {
+    private static MeasureRetention INSTANCE = new MeasureRetention();
+    public static MeasureRetention getInstance() {
+        return INSTANCE;
+    }
+
+    private static class Week {
+        final City.CityName cityName;
+        final LocalDateTime periodStart, periodEnd;
+
+        Week(City.CityName cityName, LocalDateTime periodStart) {
+            this.cityName = cityName;
+            this.periodStart = periodStart;
+            this.periodEnd = FetchUtils.getWeekPeriod(periodStart)[1];
+        }
+    }
+
+    private final boolean enabled;
+    private final int rawDays, hourRollupDays, forecastDays;
+    private final int batchSize;
+    private final long pauseMillis;
+    private volatile boolean cancelled = false;
+    private Thread thread = null;
+
+    private MeasureRetention() {
+        enabled = SettingsManager.MAINSETTINGS.getOrSetDefault("retention", "enabled", false);
+        rawDays = SettingsManager.MAINSETTINGS.getOrSetDefault("retention", "rawDays", 365);
+        hourRollupDays = Math.max(rawDays, SettingsManager.MAINSETTINGS.getOrSetDefault("retention", "hourRollupDays", 730));
+        forecastDays = Math.min(rawDays, SettingsManager.MAINSETTINGS.getOrSetDefault("retention", "forecastDays", 14));
+        batchSize = SettingsManager.MAINSETTINGS.getOrSetDefault("retention", "batchSize", 200);
+        pauseMillis = SettingsManager.MAINSETTINGS.getOrSetDefault("retention", "pauseMs", 100);
+    }
+
+    public boolean isEnabled() {
+        return enabled && MeasureRollups.getInstance().isEnabled();
+    }
+
+    /**
+     * Start of the oldest week that can still have raw hours, null if raw hours are kept forever.
+     * For forecasts it is the forecastDays bound, forecasts older than it may already be dropped.
+     */
+    public LocalDateTime getRawStart(MeasureSource source) {
+        if(!isEnabled())
+            return null;
+        int days = (source == MeasureSource.FORECAST_WEATHER) ? forecastDays : rawDays;
+        return FetchUtils.getWeekPeriod(LocalDate.now().minusDays(days))[0];
+    }
+
+    /**
+     * Start of the oldest week with hour rollups, null if they are kept forever
+     */
+    public LocalDateTime getHourRollupStart() {
+        if(!isEnabled())
+            return null;
+        return FetchUtils.getWeekPeriod(LocalDate.now().minusDays(hourRollupDays))[0];
+    }
+
+    /**
+     * @return true if the week ending at periodEnd is older than the raw tier, so its raw hours may be partial
+     */
+    public boolean isCompacted(MeasureSource source, LocalDateTime periodEnd) {
+        LocalDateTime rawStart = getRawStart(source);
+        return rawStart != null && periodEnd.isBefore(rawStart);
+    }
+
+    /**
+     * Weeks of every city stored as raw hours and ending before cutoff
+     */
+    private List<Week> listWeeks(MeasureSource source, LocalDateTime cutoff) {
+        MongoCollection<Document> collection = MongoDBManager.getInstance().getCollection(source.getAppCollection());
+        List<Week> weeks = new ArrayList<>();
+        MongoCursor<Document> cursor;
+        if(MeasureStorage.isTimeSeries()) {
+            String meta = "$" + MeasureStorage.META;
+            cursor = collection.aggregate(Arrays.asList(
+                    match(lt("datetime", cutoff)),
+                    group(new Document("country", meta + ".country").append("city", meta + ".city")
+                            .append("periodStart", MeasureResampler.Granularity.WEEK.bucketStart("$datetime"))),
+                    new Document("$replaceRoot", new Document("newRoot", "$_id"))))
+                    .allowDiskUse(true).iterator();
+        } else
+            cursor = collection.find(lt("periodEnd", cutoff))
+                    .projection(include("country", "city", "periodStart")).iterator();
+        try {
+            while (cursor.hasNext()) {
+                Document d = cursor.next();
+                weeks.add(new Week(new City.CityName(d.getString("country"), d.getString("city")),
+                        d.get("periodStart", LocalDateTime.class)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return weeks;
+    }
+
+    /**
+     * Weeks of a measure collection to compact now: older than the raw tier, or forecasts older than forecastDays
+     * whose days are all in the forecast accuracy report
+     */
+    private List<Week> weeksToCompact(MeasureSource source) {
+        LocalDateTime rawCutoff = FetchUtils.getWeekPeriod(LocalDate.now().minusDays(rawDays))[0];
+        if(source != MeasureSource.FORECAST_WEATHER)
+            return listWeeks(source, rawCutoff);
+
+        List<Week> weeks = new ArrayList<>();
+        HashMap<City.CityName, LocalDateTime> watermarks = new HashMap<>();
+        for(Week week : listWeeks(source, getRawStart(source))) {
+            if(!watermarks.containsKey(week.cityName))
+                watermarks.put(week.cityName, ForecastAccuracyReport.getInstance().getWatermark(week.cityName));
+            LocalDateTime watermark = watermarks.get(week.cityName);
+            if(week.periodEnd.isBefore(rawCutoff)
+                    || (watermark != null && !week.periodEnd.toLocalDate().isAfter(watermark.toLocalDate())))
+                weeks.add(week);
+        }
+        return weeks;
+    }
+
+    private static Bson weekFilter(Week week) {
+        if(MeasureStorage.isTimeSeries())
+            return MeasureStorage.timeSeriesFilter(Collections.singletonList(week.cityName), week.periodStart, week.periodEnd);
+        return MeasureBulkWriter.bucketFilter(week.cityName, week.periodStart, week.periodEnd);
+    }
+
+    /**
+     * Compact the weeks of a measure collection that left the raw tier, batchSize weeks at a time
+     * @return number of compacted weeks
+     */
+    public int compact(MeasureSource source) throws InterruptedException {
+        if(!isEnabled())
+            return 0;
+        MongoCollection<Document> collection = MongoDBManager.getInstance().getCollection(source.getAppCollection());
+        // compacted weeks are rolled up, hours after them may still predate rollups
+        MeasureRollups.getInstance().ensureRolledUpSince(source);
+        List<Week> weeks = weeksToCompact(source);
+
+        int compacted = 0;
+        for(int i = 0; i < weeks.size() && !cancelled; i += batchSize) {
+            HashMap<City.CityName, HashSet<YearMonth>> months = new HashMap<>();
+            List<WriteModel<Document>> deletes = new ArrayList<>();
+            for(Week week : weeks.subList(i, Math.min(i + batchSize, weeks.size()))) {
+                // rollups are completed from the raw hours before these are deleted, existing ones are kept
+                MeasureRollups.getInstance().refreshBucket(source, week.cityName, week.periodStart);
+                if(!months.containsKey(week.cityName))
+                    months.put(week.cityName, new HashSet<>());
+                months.get(week.cityName).add(YearMonth.from(week.periodStart));
+                months.get(week.cityName).add(YearMonth.from(week.periodEnd));
+                deletes.add(new DeleteManyModel<>(weekFilter(week)));
+            }
+            for(Map.Entry<City.CityName, HashSet<YearMonth>> entry : months.entrySet())
+                for(YearMonth month : entry.getValue())
+                    MeasureRollups.getInstance().refreshMonth(source, entry.getKey(), month);
+
+            collection.bulkWrite(deletes, new BulkWriteOptions().ordered(false));
+            compacted += deletes.size();
+            System.out.println("Compaction of " + source.getCollectionName() + ": " + compacted + "/" + weeks.size() + " weeks");
+            Thread.sleep(pauseMillis);
+        }
+        return compacted;
+    }
+
+    /**
+     * Delete hour rollups older than hourRollupDays, day rollups answer for them
+     * @return number of deleted rollups
+     */
+    public long expireHourRollups(MeasureSource source) {
+        LocalDateTime hourStart = getHourRollupStart();
+        if(hourStart == null)
+            return 0;
+        return MeasureRollups.getInstance().getCollection(source, MeasureRollups.Resolution.HOUR)
+                .deleteMany(lt("t", hourStart)).getDeletedCount();
+    }
+
+    public void runAll() throws InterruptedException {
+        if(!isEnabled()) {
+            System.out.println("Retention is disabled (it needs rollups enabled)");
+            return;
+        }
+        for(MeasureSource source : MeasureSource.values()) {
+            int weeks = compact(source);
+            long hours = expireHourRollups(source);
+            System.out.println("Retention of " + source.getCollectionName() + ": " + weeks + " weeks compacted, "
+                    + hours + " hour rollups expired");
+        }
+    }
+
+    /**
+     * Run the retention of all measure collections in a background thread, unless it is already running.
+     * Started with the application and after every periodic ingestion.
+     */
+    public synchronized void start() {
+        if(thread != null && thread.isAlive())
+            return;
+        cancelled = false;
+        thread = new Thread(() -> {
+            try {
+                runAll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.out.println("Retention failed:");
+                e.printStackTrace();
+            }
+        }, "measure-retention");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop after the current batch, compacted weeks stay compacted
+     */
+    public synchronized void stop() {
+        cancelled = true;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        MeasureRetention.getInstance().runAll();
+    }
+}
@@ -0,0 +1,569 @@
+package main.java.db;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.MergeOptions;
+import com.mongodb.client.model.UpdateOptions;
+import main.java.City;
+import main.java.fetch.FetchUtils;
+import main.java.measures.CategoricalMeasureValue;
+import main.java.measures.MeasureValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Pre-aggregated measures at hour, day and month resolution, one collection per measure collection and resolution
+ * (e.g. measureswpast_day). Each document holds count, sum, min, max and avg of a measure of a city in a period,
+ * plus a histogram of the values for categorical measures (sky).
+ * Rollups of a bucket are recomputed from the raw bucket after every write, so overwritten hours never
+ * leave stale sums behind.
+ * Hours stored before rollups were enabled have none: each measure collection has a watermark (rollupstate
+ * collection) before which reads go to raw buckets, until rebuild() has rolled up everything.
+ */
+public class MeasureRollups {
+    private static MeasureRollups INSTANCE = new MeasureRollups();
+    public static MeasureRollups getInstance() {
+        return INSTANCE;
+    }
+
+    public enum Resolution {
+        HOUR("hour"), DAY("day"), MONTH("month");
+
+        private final String suffix;
+
+        Resolution(String suffix) { this.suffix = suffix; }
+
+        public String getSuffix() { return suffix; }
+
+        // $dateFromParts arguments truncating datetime to this resolution
+        Document dateParts(String datetime) {
+            Document parts = new Document("year", new Document("$year", datetime))
+                    .append("month", new Document("$month", datetime));
+            if(this != MONTH)
+                parts.append("day", new Document("$dayOfMonth", datetime));
+            if(this == HOUR)
+                parts.append("hour", new Document("$hour", datetime));
+            return parts;
+        }
+    }
+
+    private static final List<String> NUMERIC_TYPES = Arrays.asList("double", "int", "long", "decimal");
+
+    // watermark of a measure collection whose rollups cover all of its hours
+    static final LocalDateTime COMPLETE = LocalDateTime.of(1970, 1, 1, 0, 0);
+
+    private final boolean enabled;
+
+    private MeasureRollups() {
+        enabled = SettingsManager.MAINSETTINGS.getOrSetDefault("rollups", "enabled", true);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static String getCollectionName(MeasureSource source, Resolution resolution) {
+        return source.getCollectionName() + "_" + resolution.getSuffix();
+    }
+
+    MongoCollection<Document> getCollection(MeasureSource source, Resolution resolution) {
+        MongoCollection<Document> raw = MongoDBManager.getInstance().getCollection(source.getAppCollection());
+        return MongoDBManager.getInstance().database.getCollection(getCollectionName(source, resolution))
+                .withReadConcern(raw.getReadConcern()).withWriteConcern(raw.getWriteConcern())
+                .withReadPreference(raw.getReadPreference());
+    }
+
+    public void createIndexes() {
+        for(MeasureSource source : MeasureSource.values())
+            for(Resolution resolution : Resolution.values())
+                getCollection(source, resolution).createIndex(new Document("country", 1).append("city", 1).append("t", 1),
+                        new IndexOptions().name("city_country_t"));
+    }
+
+    public void dropAll() {
+        for(MeasureSource source : MeasureSource.values())
+            for(Resolution resolution : Resolution.values())
+                getCollection(source, resolution).drop();
+        getStateCollection().drop();
+    }
+
+    private MongoCollection<Document> getStateCollection() {
+        return MongoDBManager.getInstance().getCollection(MongoDBManager.AppCollection.ROLLUP_STATE);
+    }
+
+    /**
+     * Watermark of a measure collection: rollups cover every hour from it on, older hours may have been stored
+     * before rollups were enabled. COMPLETE once everything is rolled up.
+     * Read on every query, a client writing with rollups disabled moves it forward (see skipRollups).
+     * @return null if no rollups have been written for the collection yet
+     */
+    public LocalDateTime getRolledUpSince(MeasureSource source) {
+        Document state = getStateCollection().find(eq("_id", source.getCollectionName())).first();
+        return (state == null) ? null : state.get("since", LocalDateTime.class);
+    }
+
+    /**
+     * Set the watermark of a measure collection if it has none, before its first rollups are written:
+     * the week after the newest stored hour, or COMPLETE if nothing is stored yet.
+     * Writers call it before writing raw hours, so no hour after the watermark is left without rollups.
+     */
+    void ensureRolledUpSince(MeasureSource source) {
+        if(getRolledUpSince(source) != null)
+            return;
+        String field = MeasureStorage.isTimeSeries() ? "datetime" : "periodStart";
+        Document newest = MongoDBManager.getInstance().getCollection(source.getAppCollection()).find()
+                .projection(include(field)).sort(descending(field)).first();
+        LocalDateTime since = (newest == null) ? COMPLETE
+                : FetchUtils.getWeekPeriod(newest.get(field, LocalDateTime.class))[0].plusWeeks(1);
+        try {
+            // only if still missing, first writers of several clients may race on the upsert
+            getStateCollection().updateOne(and(eq("_id", source.getCollectionName()), exists("since", false)),
+                    set("since", since), new UpdateOptions().upsert(true));
+        } catch (MongoWriteException e) {
+            if(e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY)
+                throw e;
+        }
+        System.out.println("Rollups of " + source.getCollectionName() + " start at " + getRolledUpSince(source));
+    }
+
+    /**
+     * List weeks about to be written whose rollups are refreshed later (see MeasureBulkWriter.refreshDerived),
+     * so that a crash in between leaves them to the next refresh of any client
+     */
+    void addPendingWeeks(MeasureSource source, Map<City.CityName, ? extends Set<LocalDateTime>> weeks) {
+        List<Document> keys = weekKeys(weeks);
+        if(!keys.isEmpty())
+            getStateCollection().updateOne(eq("_id", source.getCollectionName()), addEachToSet("pending", keys),
+                    new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Weeks listed by addPendingWeeks and not refreshed yet, city -> periodStart
+     */
+    HashMap<City.CityName, Set<LocalDateTime>> getPendingWeeks(MeasureSource source) {
+        HashMap<City.CityName, Set<LocalDateTime>> result = new HashMap<>();
+        Document state = getStateCollection().find(eq("_id", source.getCollectionName())).first();
+        if(state == null || state.get("pending") == null)
+            return result;
+        for(Document key : state.getList("pending", Document.class)) {
+            City.CityName cityName = new City.CityName(key.getString("country"), key.getString("city"));
+            if(!result.containsKey(cityName))
+                result.put(cityName, new HashSet<>());
+            result.get(cityName).add(key.get("periodStart", LocalDateTime.class));
+        }
+        return result;
+    }
+
+    void removePendingWeeks(MeasureSource source, Map<City.CityName, ? extends Set<LocalDateTime>> weeks) {
+        List<Document> keys = weekKeys(weeks);
+        if(!keys.isEmpty())
+            getStateCollection().updateOne(eq("_id", source.getCollectionName()), pullAll("pending", keys));
+    }
+
+    // same field order everywhere, array elements are matched as whole documents
+    private static List<Document> weekKeys(Map<City.CityName, ? extends Set<LocalDateTime>> weeks) {
+        List<Document> keys = new ArrayList<>();
+        for(Map.Entry<City.CityName, ? extends Set<LocalDateTime>> entry : weeks.entrySet())
+            for(LocalDateTime periodStart : entry.getValue())
+                keys.add(new Document("country", entry.getKey().getCountry()).append("city", entry.getKey().getCity())
+                        .append("periodStart", periodStart));
+        return keys;
+    }
+
+    /**
+     * Move the watermark after a week written without rollups (rollups disabled in this client),
+     * its rollups are now stale. Collections without a watermark are left alone, the first rollup write sets it.
+     */
+    void skipRollups(MeasureSource source, LocalDateTime periodStart) {
+        getStateCollection().updateOne(eq("_id", source.getCollectionName()),
+                max("since", FetchUtils.getWeekPeriod(periodStart)[0].plusWeeks(1)));
+    }
+
+    /**
+     * Range [start, end) of a measure collection to read from raw buckets instead of rollups: from the start of
+     * the raw tier (see MeasureRetention, compacted weeks keep their rollups) to the watermark.
+     * Month bounds are moved to the next month start, so that every month is read from one side only.
+     * @return null if rollups cover the whole collection, otherwise a range whose null bounds are open
+     */
+    public LocalDateTime[] getRawRange(MeasureSource source, Resolution resolution) {
+        LocalDateTime end = getRolledUpSince(source);
+        if(COMPLETE.equals(end))
+            return null;
+        LocalDateTime start = MeasureRetention.getInstance().getRawStart(source);
+        if(resolution == Resolution.MONTH) {
+            start = nextMonthStart(start);
+            end = nextMonthStart(end);
+        }
+        if(start != null && end != null && !start.isBefore(end))
+            return null;
+        return new LocalDateTime[]{start, end};
+    }
+
+    private static LocalDateTime nextMonthStart(LocalDateTime datetime) {
+        if(datetime == null)
+            return null;
+        LocalDateTime monthStart = datetime.toLocalDate().withDayOfMonth(1).atStartOfDay();
+        return monthStart.equals(datetime) ? datetime : monthStart.plusMonths(1);
+    }
+
+    /**
+     * Aggregation from raw measures to rollup documents, merged into the rollup collection
+     * @param cityName null for all cities
+     * @param from, to only hours in [from, to] are aggregated, null for no bound (to only if from is given)
+     * @param replace if false existing rollups are kept and only missing ones are added, for compacted ranges
+     *                whose raw hours are no longer complete (see MeasureRetention)
+     */
+    List<Bson> rollupPipeline(MeasureSource source, Resolution resolution, City.CityName cityName,
+                              LocalDateTime from, LocalDateTime to, boolean replace) {
+        String arrayName = source.getArrayName();
+        String v = "$v";
+        Document isNumber = new Document("$in", Arrays.asList(new Document("$type", v), NUMERIC_TYPES));
+        Document numericValue = new Document("$cond", Arrays.asList(isNumber, v, null));
+        Document categoricalValue = new Document("$cond", Arrays.asList(
+                new Document("$eq", Arrays.asList(new Document("$type", v), "string")), v, null));
+
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.addAll(MeasureStorage.sourceStages(source,
+                (cityName == null) ? null : Collections.singletonList(cityName), from, to));
+        pipeline.add(unwind("$" + arrayName));
+        if(from != null)
+            pipeline.add(match(to == null ? gte(arrayName + ".datetime", from)
+                    : and(gte(arrayName + ".datetime", from), lte(arrayName + ".datetime", to))));
+        pipeline.add(unwind("$" + arrayName + ".measurements"));
+        pipeline.add(new Document("$project", new Document("_id", 0)
+                .append("country", 1).append("city", 1)
+                .append("t", new Document("$dateFromParts", resolution.dateParts("$" + arrayName + ".datetime")))
+                .append("name", "$" + arrayName + ".measurements.name")
+                .append("unit", "$" + arrayName + ".measurements.unit")
+                .append("v", "$" + arrayName + ".measurements.value")));
+        // first by category value, to count occurrences of categorical values
+        pipeline.add(new Document("$group", new Document("_id", new Document("country", "$country").append("city", "$city")
+                .append("t", "$t").append("name", "$name").append("unit", "$unit").append("cat", categoricalValue))
+                .append("count", new Document("$sum", 1))
+                .append("n", new Document("$sum", new Document("$cond", Arrays.asList(isNumber, 1, 0))))
+                .append("sum", new Document("$sum", numericValue))
+                .append("min", new Document("$min", numericValue))
+                .append("max", new Document("$max", numericValue))));
+        pipeline.add(new Document("$group", new Document("_id", new Document("country", "$_id.country").append("city", "$_id.city")
+                .append("t", "$_id.t").append("name", "$_id.name").append("unit", "$_id.unit"))
+                .append("count", new Document("$sum", "$count"))
+                .append("n", new Document("$sum", "$n"))
+                .append("sum", new Document("$sum", "$sum"))
+                .append("min", new Document("$min", "$min"))
+                .append("max", new Document("$max", "$max"))
+                .append("hist", new Document("$push", new Document("v", "$_id.cat").append("n", "$count")))));
+        pipeline.add(new Document("$project", new Document("_id", 1)
+                .append("country", "$_id.country").append("city", "$_id.city").append("t", "$_id.t")
+                .append("name", "$_id.name").append("unit", "$_id.unit")
+                .append("count", 1).append("n", 1).append("sum", 1).append("min", 1).append("max", 1)
+                .append("avg", new Document("$cond", Arrays.asList(new Document("$gt", Arrays.asList("$n", 0)),
+                        new Document("$divide", Arrays.asList("$sum", "$n")), null)))
+                .append("hist", new Document("$filter", new Document("input", "$hist").append("as", "h")
+                        .append("cond", new Document("$ne", Arrays.asList("$$h.v", null)))))));
+        pipeline.add(merge(getCollectionName(source, resolution), new MergeOptions()
+                .whenMatched(replace ? MergeOptions.WhenMatched.REPLACE : MergeOptions.WhenMatched.KEEP_EXISTING)
+                .whenNotMatched(MergeOptions.WhenNotMatched.INSERT)));
+        return pipeline;
+    }
+
+    List<Bson> rollupPipeline(MeasureSource source, Resolution resolution, City.CityName cityName,
+                              LocalDateTime from, LocalDateTime to) {
+        return rollupPipeline(source, resolution, cityName, from, to, true);
+    }
+
+    /**
+     * Aggregation from day rollups to month rollups: sums, extremes and category counts of the days are merged,
+     * so months stay exact when raw hours of some of their weeks have been compacted
+     * @param cityName null for all cities
+     * @param from, to first and last day of the months to compute, null for all
+     */
+    List<Bson> monthPipeline(MeasureSource source, City.CityName cityName, LocalDateTime from, LocalDateTime to) {
+        List<Bson> filters = new ArrayList<>();
+        if(cityName != null)
+            filters.add(and(eq("country", cityName.getCountry()), eq("city", cityName.getCity())));
+        if(from != null)
+            filters.add(and(gte("t", from), lte("t", to)));
+        // numeric fields are taken once per day, from its first category
+        Document first = new Document("$lte", Arrays.asList("$hi", 0));
+
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(match(filters.isEmpty() ? new Document() : and(filters)));
+        pipeline.add(new Document("$unwind", new Document("path", "$hist")
+                .append("preserveNullAndEmptyArrays", true).append("includeArrayIndex", "hi")));
+        pipeline.add(new Document("$group", new Document("_id", new Document("country", "$country").append("city", "$city")
+                .append("t", new Document("$dateFromParts", Resolution.MONTH.dateParts("$t")))
+                .append("name", "$name").append("unit", "$unit").append("cat", "$hist.v"))
+                .append("count", new Document("$sum", new Document("$cond", Arrays.asList(first, "$count", 0))))
+                .append("n", new Document("$sum", new Document("$cond", Arrays.asList(first, "$n", 0))))
+                .append("sum", new Document("$sum", new Document("$cond", Arrays.asList(first, "$sum", 0))))
+                .append("min", new Document("$min", "$min"))
+                .append("max", new Document("$max", "$max"))
+                .append("catCount", new Document("$sum", "$hist.n"))));
+        pipeline.add(new Document("$group", new Document("_id", new Document("country", "$_id.country").append("city", "$_id.city")
+                .append("t", "$_id.t").append("name", "$_id.name").append("unit", "$_id.unit"))
+                .append("count", new Document("$sum", "$count"))
+                .append("n", new Document("$sum", "$n"))
+                .append("sum", new Document("$sum", "$sum"))
+                .append("min", new Document("$min", "$min"))
+                .append("max", new Document("$max", "$max"))
+                .append("hist", new Document("$push", new Document("v", "$_id.cat").append("n", "$catCount")))));
+        pipeline.add(new Document("$project", new Document("_id", 1)
+                .append("country", "$_id.country").append("city", "$_id.city").append("t", "$_id.t")
+                .append("name", "$_id.name").append("unit", "$_id.unit")
+                .append("count", 1).append("n", 1).append("sum", 1).append("min", 1).append("max", 1)
+                .append("avg", new Document("$cond", Arrays.asList(new Document("$gt", Arrays.asList("$n", 0)),
+                        new Document("$divide", Arrays.asList("$sum", "$n")), null)))
+                .append("hist", new Document("$filter", new Document("input", "$hist").append("as", "h")
+                        .append("cond", new Document("$ne", Arrays.asList("$$h.v", null)))))));
+        pipeline.add(merge(getCollectionName(source, Resolution.MONTH), new MergeOptions()
+                .whenMatched(MergeOptions.WhenMatched.REPLACE)
+                .whenNotMatched(MergeOptions.WhenNotMatched.INSERT)));
+        return pipeline;
+    }
+
+    private void runRollup(MeasureSource source, Resolution resolution, City.CityName cityName,
+                           LocalDateTime from, LocalDateTime to, boolean replace) {
+        if(resolution == Resolution.MONTH)
+            getCollection(source, Resolution.DAY).aggregate(monthPipeline(source, cityName, from, to))
+                    .allowDiskUse(true).toCollection();
+        else
+            MongoDBManager.getInstance().getCollection(source.getAppCollection())
+                    .aggregate(rollupPipeline(source, resolution, cityName, from, to, replace))
+                    .allowDiskUse(true).toCollection();
+    }
+
+    /**
+     * Recompute hour and day rollups of a just written weekly bucket. Days never span two buckets.
+     * Rollups of compacted weeks are only completed, their raw hours may be partial.
+     */
+    public void refreshBucket(MeasureSource source, City.CityName cityName, LocalDateTime periodStart) {
+        LocalDateTime periodEnd = FetchUtils.getWeekPeriod(periodStart)[1];
+        boolean replace = !MeasureRetention.getInstance().isCompacted(source, periodEnd);
+        runRollup(source, Resolution.HOUR, cityName, periodStart, periodEnd, replace);
+        runRollup(source, Resolution.DAY, cityName, periodStart, periodEnd, replace);
+    }
+
+    /**
+     * Recompute the month rollup of a city from the day rollups of the month
+     */
+    public void refreshMonth(MeasureSource source, City.CityName cityName, YearMonth month) {
+        LocalDateTime monthStart = month.atDay(1).atStartOfDay();
+        LocalDateTime monthEnd = month.atEndOfMonth().atTime(23, 59, 59);
+        runRollup(source, Resolution.MONTH, cityName, monthStart, monthEnd, true);
+    }
+
+    /**
+     * Rebuild all rollups of a measure collection from raw buckets, e.g. for data written before rollups existed,
+     * then mark them COMPLETE so reads stop going to raw buckets.
+     * With retention enabled nothing is dropped: compacted ranges only have their rollups left, so just the
+     * raw tier is recomputed.
+     */
+    public void rebuild(MeasureSource source) {
+        LocalDateTime before = getRolledUpSince(source);
+        LocalDateTime rawStart = MeasureRetention.getInstance().getRawStart(source);
+        for(Resolution resolution : Resolution.values()) {
+            if(rawStart == null) {
+                getCollection(source, resolution).drop();
+                runRollup(source, resolution, null, null, null, true);
+            } else if(resolution == Resolution.MONTH)
+                runRollup(source, resolution, null, null, null, true);
+            else
+                runRollup(source, resolution, null, rawStart, null, true);
+        }
+        // unless a week was written without rollups in the meantime (see skipRollups)
+        getStateCollection().updateOne((before == null) ? eq("_id", source.getCollectionName())
+                        : and(eq("_id", source.getCollectionName()), eq("since", before)),
+                set("since", COMPLETE), new UpdateOptions().upsert(before == null));
+        System.out.println("Rollups of " + source.getCollectionName() + " rebuilt");
+    }
+
+    public void rebuildAll() {
+        for(MeasureSource source : MeasureSource.values())
+            rebuild(source);
+        createIndexes();
+    }
+
+    /**
+     * Cursor on rollup documents of the given cities with t in [from, to], sorted by city and t.
+     * Hours older than the hour rollup retention (see MeasureRetention) are returned as day rollups, read with a
+     * second query and merged in order. Hours of the raw range (see getRawRange) are skipped.
+     * @param batchSize documents per round trip, 0 for the server default
+     */
+    public MongoCursor<Document> cursor(MeasureSource source, Resolution resolution, Collection<City.CityName> cities,
+                                        LocalDateTime from, LocalDateTime to, int batchSize) {
+        return cursor(source, resolution, cities, from, to, getRawRange(source, resolution), batchSize);
+    }
+
+    /**
+     * @param rawRange range to skip, as returned by getRawRange
+     */
+    MongoCursor<Document> cursor(MeasureSource source, Resolution resolution, Collection<City.CityName> cities,
+                                 LocalDateTime from, LocalDateTime to, LocalDateTime[] rawRange, int batchSize) {
+        // $or of no cities is rejected by the server; an open raw range leaves nothing to read
+        if(cities.isEmpty() || (rawRange != null && rawRange[0] == null && rawRange[1] == null))
+            return new MergedCursor(null, null);
+
+        List<Bson> cityFilters = new ArrayList<>();
+        for(City.CityName c : cities)
+            cityFilters.add(and(eq("country", c.getCountry()), eq("city", c.getCity())));
+        Bson cityFilter = cityFilters.size() == 1 ? cityFilters.get(0) : or(cityFilters);
+        if(rawRange != null)
+            cityFilter = and(cityFilter, rawRange[0] == null ? gte("t", rawRange[1])
+                    : rawRange[1] == null ? lt("t", rawRange[0])
+                    : or(lt("t", rawRange[0]), gte("t", rawRange[1])));
+
+        MongoCollection<Document> collection = getCollection(source, resolution);
+        LocalDateTime hourStart = MeasureRetention.getInstance().getHourRollupStart();
+        if(resolution != Resolution.HOUR || hourStart == null || !from.isBefore(hourStart))
+            return collection.find(and(cityFilter, gte("t", from), lte("t", to)))
+                    .sort(ascending("country", "city", "t")).batchSize(batchSize).iterator();
+
+        // two sorted queries merged here, $unionWith would need MongoDB 4.4
+        MongoCursor<Document> days = getCollection(source, Resolution.DAY)
+                .find(and(cityFilter, gte("t", from), lt("t", hourStart)))
+                .sort(ascending("country", "city", "t")).batchSize(batchSize).iterator();
+        MongoCursor<Document> hours = collection.find(and(cityFilter, gte("t", hourStart), lte("t", to)))
+                .sort(ascending("country", "city", "t")).batchSize(batchSize).iterator();
+        return new MergedCursor(days, hours);
+    }
+
+    /**
+     * Sorted merge of two cursors sorted by (country, city, t), null for no documents
+     */
+    private static class MergedCursor implements MongoCursor<Document> {
+        private static final Comparator<Document> ORDER = Comparator.<Document, String>comparing(d -> d.getString("country"))
+                .thenComparing(d -> d.getString("city"))
+                .thenComparing(d -> d.get("t", LocalDateTime.class));
+
+        private final MongoCursor<Document> left, right;
+        private Document nextLeft, nextRight;
+
+        MergedCursor(MongoCursor<Document> left, MongoCursor<Document> right) {
+            this.left = left;
+            this.right = right;
+            nextLeft = (left != null && left.hasNext()) ? left.next() : null;
+            nextRight = (right != null && right.hasNext()) ? right.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLeft != null || nextRight != null;
+        }
+
+        @Override
+        public Document next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            Document result;
+            if(nextRight == null || (nextLeft != null && ORDER.compare(nextLeft, nextRight) <= 0)) {
+                result = nextLeft;
+                nextLeft = left.hasNext() ? left.next() : null;
+            } else {
+                result = nextRight;
+                nextRight = right.hasNext() ? right.next() : null;
+            }
+            return result;
+        }
+
+        @Override
+        public Document tryNext() {
+            return hasNext() ? next() : null;
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            if(left != null)
+                left.close();
+            if(right != null)
+                right.close();
+        }
+    }
+
+    /**
+     * Days with a day rollup of each city in [from, to], i.e. days that had stored hours even if compacted since
+     */
+    public HashMap<City.CityName, Set<LocalDate>> getDays(MeasureSource source, Collection<City.CityName> cities,
+                                                          LocalDateTime from, LocalDateTime to) {
+        HashMap<City.CityName, Set<LocalDate>> result = new HashMap<>();
+        for(Document d : find(source, Resolution.DAY, cities, from, to)) {
+            City.CityName cityName = new City.CityName(d.getString("country"), d.getString("city"));
+            if(!result.containsKey(cityName))
+                result.put(cityName, new HashSet<>());
+            result.get(cityName).add(d.get("t", LocalDateTime.class).toLocalDate());
+        }
+        return result;
+    }
+
+    public List<Document> find(MeasureSource source, Resolution resolution, Collection<City.CityName> cities,
+                               LocalDateTime from, LocalDateTime to) {
+        List<Document> result = new ArrayList<>();
+        MongoCursor<Document> cursor = cursor(source, resolution, cities, from, to, 0);
+        try {
+            while (cursor.hasNext())
+                result.add(cursor.next());
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Convert a rollup document to a measure value: avg for numeric measures, most frequent value for categorical ones
+     * @return null if the rollup has no usable value
+     */
+    public static MeasureValue toMeasureValue(Document d) {
+        City.CityName city = new City.CityName(d.getString("country"), d.getString("city"));
+        List<Document> hist = d.getList("hist", Document.class);
+        if(d.get("avg") != null)
+            return new MeasureValue(d.get("t", LocalDateTime.class), city, d.getString("name"),
+                    ((Number)d.get("avg")).doubleValue(), d.getString("unit"));
+        if(hist != null && !hist.isEmpty())
+            return new CategoricalMeasureValue(d.get("t", LocalDateTime.class), city, d.getString("name"),
+                    d.getString("unit"), MeasureResampler.toHistogram(hist));
+        return null;
+    }
+
+    public static HashMap<City.CityName, ArrayList<MeasureValue>> toMeasureValues(List<Document> rollups) {
+        HashMap<City.CityName, ArrayList<MeasureValue>> cityMap = new HashMap<>();
+        for(Document d : rollups) {
+            MeasureValue m = toMeasureValue(d);
+            if(m == null)
+                continue;
+            if(!cityMap.containsKey(m.cityName))
+                cityMap.put(m.cityName, new ArrayList<>());
+            cityMap.get(m.cityName).add(m);
+        }
+        return cityMap;
+    }
+
+    public static void main(String[] args) {
+        MeasureRollups.getInstance().rebuildAll();
+    }
+}
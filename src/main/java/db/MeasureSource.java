@@ -0,0 +1,74 @@
+package main.java.db;
+
+import main.java.City;
+import main.java.fetch.FetchAdapter;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measure collections that are filled from external APIs, with the bucket array they use and how to fetch a day
+ */
+public enum MeasureSource {
+    PAST_WEATHER(MongoDBManager.AppCollection.PAST_WEATHER, "weatherCondition"),
+    FORECAST_WEATHER(MongoDBManager.AppCollection.FORECAST_WEATHER, "weatherForecast"),
+    POLLUTION(MongoDBManager.AppCollection.POLLUTION, "pollutionMeasurements");
+
+    private final MongoDBManager.AppCollection appCollection;
+    private final String arrayName;
+
+    MeasureSource(MongoDBManager.AppCollection appCollection, String arrayName) {
+        this.appCollection = appCollection;
+        this.arrayName = arrayName;
+    }
+
+    MongoDBManager.AppCollection getAppCollection() { return appCollection; }
+    public String getCollectionName() { return appCollection.getName(); }
+    public String getArrayName() { return arrayName; }
+
+    public List<Document> fetch(City city, LocalDate day) throws IOException {
+        switch (this) {
+            case PAST_WEATHER: return FetchAdapter.getInstance().fetchHistoricalData(city, day);
+            case FORECAST_WEATHER: return FetchAdapter.getInstance().fetchForecastData(city, day);
+            default: return FetchAdapter.getInstance().fetchPollutionData(city, day);
+        }
+    }
+
+    /**
+     * @return true if a whole interval can be fetched at once with fetchRange
+     */
+    public boolean supportsRangeFetch() {
+        return this == POLLUTION;
+    }
+
+    /**
+     * Fetch [startDate, endDate] with range requests, only for sources that supportsRangeFetch
+     * @return hourly measures by day, days without data have an empty list
+     */
+    public Map<LocalDate, List<Document>> fetchRange(City city, LocalDate startDate, LocalDate endDate) throws IOException {
+        if(!supportsRangeFetch())
+            throw new UnsupportedOperationException(this + " can only be fetched by day");
+        return FetchAdapter.getInstance().fetchPollutionDataRange(city, startDate, endDate);
+    }
+
+    /**
+     * @return true if the APIs can provide this kind of measure for day
+     */
+    public boolean isAvailable(LocalDate day) {
+        switch (this) {
+            case PAST_WEATHER: return day.isBefore(LocalDate.now());
+            case FORECAST_WEATHER: return !day.isBefore(LocalDate.now());
+            default: return !day.isAfter(LocalDate.now());
+        }
+    }
+
+    public static MeasureSource fromCollectionName(String name) {
+        for(MeasureSource s : values())
+            if(s.getCollectionName().equals(name))
+                return s;
+        throw new IllegalArgumentException("Unknown measure collection " + name);
+    }
+}
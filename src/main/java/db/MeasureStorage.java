@@ -0,0 +1,220 @@
+package main.java.db;
+
+import com.mongodb.MongoCommandException;
+import main.java.City;
+import main.java.fetch.FetchUtils;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Storage modes of the measure collections, selected with the storage.mode setting.
+ * BUCKETS, weekly buckets per city (see BucketFormat).
+ * TIMESERIES, native time-series collections, one document per hour:
+ *   { datetime, meta: { country, city, location (pollution only) }, measurements: [{ name, value, unit }], writeId }
+ *   It needs MongoDB 5.0, and 7.0 to rewrite stored hours (deletes on datetime, see timeSeriesOverwriteFilter).
+ * Readers start from sourceStages(), which yield { country, city, arrayName: [rows] } documents in both modes,
+ * so the stages following them do not change.
+ * With storage.sharded the collections are sharded on shardKey(), led by (country, city): every query and write
+ * of a city has an equality on both, so mongos routes it to a single shard.
+ */
+final class MeasureStorage {
+    enum Mode { BUCKETS, TIMESERIES }
+
+    static final String META = "meta";
+    // id of the flush that wrote an hour document, newer flushes have greater ids
+    static final String WRITE_ID = "writeId";
+
+    // shardCollection error on collections already sharded
+    private static final int ALREADY_INITIALIZED = 23;
+
+    private static volatile Mode mode = Mode.valueOf(
+            SettingsManager.MAINSETTINGS.getOrSetDefault("storage", "mode", Mode.BUCKETS.name()));
+    private static final boolean sharded = SettingsManager.MAINSETTINGS.getOrSetDefault("storage", "sharded", false);
+
+    private MeasureStorage() {}
+
+    static Mode getMode() {
+        return mode;
+    }
+
+    static boolean isTimeSeries() {
+        return mode == Mode.TIMESERIES;
+    }
+
+    /**
+     * Only for benchmarks comparing the modes, collections must be recreated after a change
+     */
+    static void setMode(Mode newMode) {
+        mode = newMode;
+    }
+
+    /**
+     * Keys of the index of a measure collection, on city and time
+     */
+    static Document indexKeys() {
+        if(isTimeSeries())
+            return new Document(META + ".country", 1).append(META + ".city", 1).append("datetime", 1);
+        // city: 2 as in the original index, its name must not change on existing databases
+        return new Document("country", 1).append("city", 2).append("periodStart", 1).append("periodEnd", 1);
+    }
+
+    static boolean isSharded() {
+        return sharded;
+    }
+
+    /**
+     * Shard key of a measure collection: city, then bucket start for weekly buckets.
+     * Time-series collections can only be sharded on metaField (and timeField) and are bucketed by the server.
+     */
+    static Document shardKey() {
+        if(isTimeSeries())
+            return new Document(META + ".country", 1).append(META + ".city", 1);
+        return new Document("country", 1).append("city", 1).append("periodStart", 1);
+    }
+
+    /**
+     * Enable sharding of the database and shard the measure collections, already sharded ones are skipped.
+     * Needs a connection to mongos.
+     */
+    static void shardCollections() {
+        MongoDBManager manager = MongoDBManager.getInstance();
+        String databaseName = manager.database.getName();
+        manager.runAdminCommand(new Document("enableSharding", databaseName));
+        for(MeasureSource source : MeasureSource.values()) {
+            // shardCollection needs an index starting with the key if the collection is not empty
+            manager.database.getCollection(source.getCollectionName()).createIndex(shardKey());
+            try {
+                manager.runAdminCommand(new Document("shardCollection", databaseName + "." + source.getCollectionName())
+                        .append("key", shardKey()));
+            } catch (MongoCommandException e) {
+                if(e.getErrorCode() != ALREADY_INITIALIZED)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Create the measure collections of the current mode if missing, with their index.
+     * Existing collections of the other mode are left untouched: drop them (or use another database) to switch.
+     */
+    static void createCollections() {
+        MongoDBManager manager = MongoDBManager.getInstance();
+        HashMap<String, String> existing = new HashMap<>();
+        for(Document c : manager.database.listCollections())
+            existing.put(c.getString("name"), c.getString("type"));
+
+        for(MeasureSource source : MeasureSource.values()) {
+            String name = source.getCollectionName();
+            if(isTimeSeries() && !existing.containsKey(name))
+                // the 3.x driver has no TimeSeriesOptions, create is sent as a plain command
+                manager.database.runCommand(new Document("create", name).append("timeseries",
+                        new Document("timeField", "datetime").append("metaField", META).append("granularity", "hours")));
+            else if(existing.containsKey(name) && isTimeSeries() != "timeseries".equals(existing.get(name)))
+                System.out.println("Measure collection " + name + " is not stored as " + mode + ", drop it to switch mode");
+            manager.createMeasuresIndex(source.getAppCollection());
+        }
+        if(isSharded())
+            shardCollections();
+    }
+
+    /**
+     * Filter on hour documents of the given cities, null for all
+     */
+    static Bson timeSeriesFilter(Collection<City.CityName> cities, LocalDateTime from, LocalDateTime to) {
+        List<Bson> filters = new ArrayList<>();
+        if(cities != null) {
+            List<Bson> cityFilters = new ArrayList<>();
+            for(City.CityName c : cities)
+                cityFilters.add(and(eq(META + ".country", c.getCountry()), eq(META + ".city", c.getCity())));
+            filters.add(cityFilters.size() == 1 ? cityFilters.get(0) : or(cityFilters));
+        }
+        if(from != null)
+            filters.add(gte("datetime", from));
+        if(to != null)
+            filters.add(lte("datetime", to));
+        return filters.isEmpty() ? new Document() : and(filters);
+    }
+
+    /**
+     * Filter on weekly buckets of the given cities (null for all) overlapping [from, to]
+     */
+    static Bson bucketFilter(Collection<City.CityName> cities, LocalDateTime from, LocalDateTime to) {
+        List<Bson> filters = new ArrayList<>();
+        if(cities != null)
+            filters.add(ForecastReliability.cityFilter(cities));
+        if(to != null)
+            filters.add(lte("periodStart", to));
+        if(from != null)
+            // bound on the shard key too, buckets overlapping from start at its week
+            filters.add(and(gte("periodStart", FetchUtils.getWeekPeriod(from)[0]), gte("periodEnd", from)));
+        return filters.isEmpty() ? new Document() : and(filters);
+    }
+
+    /**
+     * First stages of every pipeline on a measure collection: documents of the cities overlapping [from, to]
+     * with the rows of their hours in arrayName. Rows outside [from, to] may still be present in BUCKETS mode.
+     * @param cities null for all cities
+     * @param from, to null for no bound
+     */
+    static List<Bson> sourceStages(MeasureSource source, Collection<City.CityName> cities,
+                                   LocalDateTime from, LocalDateTime to) {
+        String arrayName = source.getArrayName();
+        if(!isTimeSeries())
+            return Arrays.asList(match(bucketFilter(cities, from, to)), BucketFormat.expandStage(arrayName));
+
+        Document row = new Document("datetime", "$datetime");
+        if(BucketFormat.isPollution(arrayName))
+            row.append("location", "$" + META + ".location");
+        row.append("measurements", "$measurements");
+        return Arrays.asList(match(timeSeriesFilter(cities, from, to)),
+                new Document("$project", new Document("_id", 0)
+                        .append("country", "$" + META + ".country").append("city", "$" + META + ".city")
+                        .append(arrayName, Collections.singletonList(row))));
+    }
+
+    /**
+     * Hour document of the time-series collection of arrayName, from an hourly row as produced by the fetchers
+     * @param writeId id of the flush writing it
+     */
+    static Document timeSeriesDocument(City city, String arrayName, Document hour, ObjectId writeId) {
+        Document meta = new Document("country", city.getCountry()).append("city", city.getCity());
+        if(BucketFormat.isPollution(arrayName))
+            meta.append("location", hour.get("location"));
+        return new Document("datetime", hour.get("datetime")).append(META, meta)
+                .append("measurements", hour.get("measurements")).append(WRITE_ID, writeId);
+    }
+
+    /**
+     * Delete of the stored hours that the given rows of a city rewrite: by datetime, and by location for pollution,
+     * written before the flush writeId (documents written before write ids existed have none).
+     * Time-series deletes not only on metaField need MongoDB 7.0.
+     */
+    static Bson timeSeriesOverwriteFilter(City city, String arrayName, Collection<Document> hours, ObjectId writeId) {
+        Bson cityFilter = and(eq(META + ".country", city.getCountry()), eq(META + ".city", city.getCity()),
+                or(lt(WRITE_ID, writeId), exists(WRITE_ID, false)));
+        if(!BucketFormat.isPollution(arrayName)) {
+            List<Object> datetimes = new ArrayList<>();
+            for(Document h : hours)
+                datetimes.add(h.get("datetime"));
+            return and(cityFilter, in("datetime", datetimes));
+        }
+
+        LinkedHashMap<Object, List<Object>> datetimesByLocation = new LinkedHashMap<>();
+        for(Document h : hours) {
+            if(!datetimesByLocation.containsKey(h.get("location")))
+                datetimesByLocation.put(h.get("location"), new ArrayList<>());
+            datetimesByLocation.get(h.get("location")).add(h.get("datetime"));
+        }
+        List<Bson> locationFilters = new ArrayList<>();
+        for(Map.Entry<Object, List<Object>> entry : datetimesByLocation.entrySet())
+            locationFilters.add(and(eq(META + ".location", entry.getKey()), in("datetime", entry.getValue())));
+        return and(cityFilter, locationFilters.size() == 1 ? locationFilters.get(0) : or(locationFilters));
+    }
+}
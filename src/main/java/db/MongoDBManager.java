@@ -3,6 +3,7 @@ package main.java.db;
 import com.mongodb.*;
 import com.mongodb.client.*;
 import com.mongodb.client.model.*;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.result.UpdateResult;
 import io.github.cbartosiak.bson.codecs.jsr310.duration.DurationAsDecimal128Codec;
 import io.github.cbartosiak.bson.codecs.jsr310.localdate.LocalDateAsDateTimeCodec;
@@ -13,7 +14,6 @@ import main.java.fetch.FetchAdapter;
 import main.java.fetch.FetchUtils;
 import main.java.gui.ProgressHandler;
 import main.java.measures.MeasureValue;
-import org.bson.BsonNull;
 import org.bson.BsonType;
 import org.bson.Document;
 import org.bson.codecs.BsonTypeClassMap;
@@ -30,7 +30,7 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.function.Function;
+import java.util.function.Consumer;
 
 import static com.mongodb.client.model.Accumulators.*;
 import static com.mongodb.client.model.Aggregates.*;
@@ -68,7 +68,12 @@ public class MongoDBManager {
         PAST_WEATHER("measureswpast", ReadConcern.LOCAL, WriteConcern.W2.withJournal(true), ReadPreference.nearest()),
         FORECAST_WEATHER("measureswfor", ReadConcern.LOCAL, WriteConcern.W2.withJournal(true), ReadPreference.nearest()),
         POLLUTION("measurespoll", ReadConcern.LOCAL, WriteConcern.W2.withJournal(true), ReadPreference.nearest()),
-        USERS("users", ReadConcern.MAJORITY, WriteConcern.MAJORITY.withJournal(false), ReadPreference.nearest());
+        USERS("users", ReadConcern.MAJORITY, WriteConcern.MAJORITY.withJournal(false), ReadPreference.nearest()),
+        INGESTION_JOBS("ingestionjobs", ReadConcern.MAJORITY, WriteConcern.MAJORITY, ReadPreference.primary()),
+        AVAILABILITY("availability", ReadConcern.LOCAL, WriteConcern.W2.withJournal(true), ReadPreference.nearest()),
+        FORECAST_ACCURACY("forecastaccuracy", ReadConcern.LOCAL, WriteConcern.W2.withJournal(true), ReadPreference.nearest()),
+        POLLUTION_FORECAST("pollutionforecast", ReadConcern.LOCAL, WriteConcern.W2.withJournal(true), ReadPreference.nearest()),
+        ROLLUP_STATE("rollupstate", ReadConcern.MAJORITY, WriteConcern.MAJORITY, ReadPreference.primary());
 
         private final String name;
         private final ReadConcern rc;
@@ -118,29 +123,105 @@ public class MongoDBManager {
         mongoClient.close();
     }
 
+    Document runAdminCommand(Document command) {
+        return mongoClient.getDatabase("admin").runCommand(command);
+    }
+
+    MongoCollection<Document> getCollection(AppCollection appCollection) {
+        return appCollection.get(database);
+    }
+
+    /**
+     * Stored coordinates of every location, used to diff a fresh OpenAQ list against the locations collection
+     */
+    private HashMap<City.CityName, List<Double>> getStoredLocationCoords(MongoCollection<Document> collection) {
+        HashMap<City.CityName, List<Double>> stored = new HashMap<>();
+        MongoCursor<Document> cursor = collection.find()
+                .projection(fields(include("country", "city", "coordinates.coordinates"), excludeId())).iterator();
+        try {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                Document coords = doc.get("coordinates", Document.class);
+                stored.put(new City.CityName(doc.getString("country"), doc.getString("city")),
+                        coords == null ? null : coords.getList("coordinates", Double.class));
+            }
+        } finally {
+            cursor.close();
+        }
+        return stored;
+    }
+
+    // centroids are recomputed from scratch on each sync, tolerate floating point noise of the summation order
+    private static boolean sameCoords(List<Double> a, List<Double> b) {
+        if(a == null || b == null || a.size() != b.size())
+            return false;
+        for(int i=0; i<a.size(); i++)
+            if(Math.abs(a.get(i) - b.get(i)) > 1e-7)
+                return false;
+        return true;
+    }
+
     /**
-     * Merge OpenAQ Location list to locations collection
+     * Merge OpenAQ Location list to locations collection. Only new cities and cities whose centroid moved are written,
+     * with a single unordered bulk upsert. Enabled status and votes of existing cities are left untouched.
+     * @return number of inserted or updated locations
      * @throws IOException due to OpenAQ exceptions
      */
-    public void syncLocationList() throws IOException {
+    public int syncLocationList() throws IOException {
         MongoCollection<Document> collection = AppCollection.LOCATIONS.get(database);
-        try {
-            // duplicate check is made by unique compound index on (country, city), skip duplicate errors using ordered:false option
-            collection.insertMany(FetchAdapter.getInstance().fetchAllCities(), new InsertManyOptions().ordered(false));
-        } catch (MongoBulkWriteException e) {
-            // duplicates cause a MongoBulkWriteException, we should skip this
-            //return e.getWriteResult().getInsertedCount(); // TODO: return updated locations and implement this on GUI
+        HashMap<City.CityName, List<Double>> stored = getStoredLocationCoords(collection);
+
+        List<WriteModel<Document>> operations = new ArrayList<>();
+        for(Document location : FetchAdapter.getInstance().fetchAllCities()) {
+            City.CityName cityName = new City.CityName(location.getString("country"), location.getString("city"));
+            Document coordinates = location.get("coordinates", Document.class);
+            if(stored.containsKey(cityName) && sameCoords(stored.get(cityName), coordinates.getList("coordinates", Double.class)))
+                continue;
+
+            Document filterDoc = new Document("country", cityName.getCountry()).append("city", cityName.getCity());
+            Document insertOnlyDoc = new Document(location);
+            insertOnlyDoc.remove("coordinates");
+            operations.add(new UpdateOneModel<>(filterDoc,
+                    new Document("$set", new Document("coordinates", coordinates))
+                            .append("$setOnInsert", insertOnlyDoc),
+                    new UpdateOptions().upsert(true)));
         }
+
+        if(operations.isEmpty())
+            return 0;
+        BulkWriteResult result = collection.bulkWrite(operations, new BulkWriteOptions().ordered(false));
+        return result.getUpserts().size() + result.getModifiedCount();
     }
 
     /**
-     * Wipe out locations collection and reload it from OpenAQ
+     * Rebuild locations collection from OpenAQ without leaving it empty: the new list is loaded into a staging
+     * collection, indexed, and then renamed over locations in one step. Enabled status and votes are reset.
+     * @return number of locations inserted, removed or moved compared to the replaced collection
      * @throws IOException due to OpenAQ exceptions
      */
-    public void resetLocationList() throws IOException {
+    public int resetLocationList() throws IOException {
         MongoCollection<Document> collection = AppCollection.LOCATIONS.get(database);
-        collection.deleteMany(new Document());
-        collection.insertMany(FetchAdapter.getInstance().fetchAllCities());
+        List<Document> locations = FetchAdapter.getInstance().fetchAllCities();
+
+        HashMap<City.CityName, List<Double>> stored = getStoredLocationCoords(collection);
+        int changed = 0;
+        for(Document location : locations) {
+            List<Double> oldCoords = stored.remove(new City.CityName(location.getString("country"), location.getString("city")));
+            if(!sameCoords(oldCoords, location.get("coordinates", Document.class).getList("coordinates", Double.class)))
+                changed++;
+        }
+        changed += stored.size(); // cities no more present on OpenAQ
+
+        MongoCollection<Document> staging = database.getCollection(AppCollection.LOCATIONS.getName() + "_staging")
+                .withWriteConcern(AppCollection.LOCATIONS.getWriteConcern());
+        staging.drop();
+        if(!locations.isEmpty())
+            staging.insertMany(locations, new InsertManyOptions().ordered(false));
+        createLocationIndex(staging);
+        staging.renameCollection(new MongoNamespace(DATABASE_NAME, AppCollection.LOCATIONS.getName()),
+                new RenameCollectionOptions().dropTarget(true));
+
+        return changed;
     }
 
     public ArrayList<City> getLocationList(User.Status userStatus) {
@@ -326,10 +407,14 @@ public class MongoDBManager {
 
     // compound unique index on (country, city)
     protected void createLocationIndex() {
-        database.getCollection(AppCollection.LOCATIONS.getName()).createIndex(new Document("country", 1).append("city", 1),
+        createLocationIndex(database.getCollection(AppCollection.LOCATIONS.getName()));
+    }
+
+    private void createLocationIndex(MongoCollection<Document> collection) {
+        collection.createIndex(new Document("country", 1).append("city", 1),
                 new IndexOptions().unique(true).name("city_country_unique"));
 
-        database.getCollection(AppCollection.LOCATIONS.getName()).createIndex(new Document("country", 1).append("city", 1),
+        collection.createIndex(new Document("country", 1).append("city", 1),
                 new IndexOptions().unique(false).name("city_country_en_collation2")
                         .collation(Collation.builder().locale("en").collationStrength(CollationStrength.SECONDARY).build()));
     }
@@ -352,29 +437,27 @@ public class MongoDBManager {
         if(!isMeasureCollection(appCollection))
             throw new IllegalArgumentException("appCollection is not a measure collection!");
 
-        database.getCollection(appCollection.getName()).createIndex(
-                new Document("country", 1).append("city", 2).append("periodStart", 1).append("periodEnd", 1));
+        database.getCollection(appCollection.getName()).createIndex(MeasureStorage.indexKeys());
     }
 
     protected void dropMeasuresIndex(AppCollection appCollection) {
         if(!isMeasureCollection(appCollection))
             throw new IllegalArgumentException("appCollection is not a measure collection!");
 
-        database.getCollection(appCollection.getName()).dropIndex(
-                new Document("country", 1).append("city", 2).append("periodStart", 1).append("periodEnd", 1));
+        database.getCollection(appCollection.getName()).dropIndex(MeasureStorage.indexKeys());
     }
 
 
     public void loadPollutionFromAPI(City city, LocalDate startDate, LocalDate endDate, ProgressHandler progress) throws IOException {
-        if(progress != null) progress.setMaxProgress((int)ChronoUnit.DAYS.between(startDate, endDate));
-
-        MongoCollection<Document> collection = AppCollection.POLLUTION.get(database);
+        loadPollutionFromAPI(city, startDate, endDate, progress, false);
+    }
 
-        for(LocalDate d = LocalDate.from(startDate); !d.equals(endDate.plusDays(1)); d = d.plusDays(1)) {
-            List<Document> pollutionData = FetchAdapter.getInstance().fetchPollutionData(city, d);
-            addDataToCollection(collection, city, d, "pollutionMeasurements", pollutionData);
-            if(progress != null) progress.increaseProgress();
-        }
+    /**
+     * @param force fetch again also days already stored
+     */
+    public void loadPollutionFromAPI(City city, LocalDate startDate, LocalDate endDate, ProgressHandler progress,
+                                     boolean force) throws IOException {
+        loadFromAPI(MeasureSource.POLLUTION, city, startDate, endDate, progress, force);
     }
 
     public void loadPastWeatherFromAPI(City city, LocalDate startDate, LocalDate endDate) throws IOException {
@@ -382,17 +465,19 @@ public class MongoDBManager {
     }
 
     public void loadPastWeatherFromAPI(City city, LocalDate startDate, LocalDate endDate, ProgressHandler progress) throws IOException {
-        if(startDate.isAfter(LocalDate.now()) || endDate.isAfter(LocalDate.now()))
-            throw new IllegalArgumentException("Cannot fetch past weather for future days");
+        loadPastWeatherFromAPI(city, startDate, endDate, progress, false);
+    }
 
-        if(progress != null) progress.setMaxProgress((int)ChronoUnit.DAYS.between(startDate, endDate));
+    /**
+     * @param force fetch again also days already stored
+     */
+    public void loadPastWeatherFromAPI(City city, LocalDate startDate, LocalDate endDate, ProgressHandler progress,
+                                       boolean force) throws IOException {
+        // same bound as MeasureSource.isAvailable, today is not past weather yet
+        if(!startDate.isBefore(LocalDate.now()) || !endDate.isBefore(LocalDate.now()))
+            throw new IllegalArgumentException("Past weather can be fetched only up to yesterday");
 
-        MongoCollection<Document> collection = AppCollection.PAST_WEATHER.get(database);
-        for(LocalDate d = LocalDate.from(startDate); !d.equals(endDate.plusDays(1)); d = d.plusDays(1)) {
-            List<Document> mongoHourlyList = FetchAdapter.getInstance().fetchHistoricalData(city, d);
-            addDataToCollection(collection, city, d, "weatherCondition", mongoHourlyList);
-            if(progress != null) progress.increaseProgress();
-        }
+        loadFromAPI(MeasureSource.PAST_WEATHER, city, startDate, endDate, progress, force);
     }
 
     public void loadForecastWeatherFromAPI(City city, LocalDate startDate, LocalDate endDate) throws IOException {
@@ -400,62 +485,51 @@ public class MongoDBManager {
     }
 
     public void loadForecastWeatherFromAPI(City city, LocalDate startDate, LocalDate endDate, ProgressHandler progress) throws IOException {
+        loadForecastWeatherFromAPI(city, startDate, endDate, progress, false);
+    }
+
+    /**
+     * @param force fetch again also days already stored
+     */
+    public void loadForecastWeatherFromAPI(City city, LocalDate startDate, LocalDate endDate, ProgressHandler progress,
+                                           boolean force) throws IOException {
         if(startDate.isBefore(LocalDate.now()) || endDate.isBefore(LocalDate.now()))
             throw new IllegalArgumentException("Cannot fetch forecast weather for past days");
 
-        if(progress != null) progress.setMaxProgress((int)ChronoUnit.DAYS.between(startDate, endDate));
+        loadFromAPI(MeasureSource.FORECAST_WEATHER, city, startDate, endDate, progress, force);
+    }
 
-        MongoCollection<Document> collection = AppCollection.FORECAST_WEATHER.get(database);
-        for(LocalDate d = LocalDate.from(startDate); !d.equals(endDate.plusDays(1)); d = d.plusDays(1)) {
-            List<Document> mongoHourlyList = FetchAdapter.getInstance().fetchForecastData(city, d);
-            addDataToCollection(collection, city, d, "weatherForecast", mongoHourlyList);
-            if(progress != null) progress.increaseProgress();
+    /**
+     * Fetch the days in [startDate, endDate] that are not stored yet (all of them if force) and write them
+     * to the source collection through an IngestionPipeline
+     */
+    private void loadFromAPI(MeasureSource source, City city, LocalDate startDate, LocalDate endDate,
+                             ProgressHandler progress, boolean force) throws IOException {
+        List<GapPlanner.FetchRange> plan = new GapPlanner().plan(Collections.singletonList(city), startDate, endDate,
+                Collections.singletonList(source), force);
+        if(progress != null) progress.setMaxProgress(GapPlanner.countDays(plan));
+
+        try(IngestionPipeline pipeline = new IngestionPipeline(progress)) {
+            for(GapPlanner.FetchRange range : plan)
+                pipeline.submitRange(range.source, range.city, range.startDate, range.endDate);
+            pipeline.awaitCompletion();
         }
     }
 
     public void testMeasureImport(City city) throws IOException {
-        for(int i=0; i<5; i++) {
-            LocalDate d = LocalDate.now().minusDays(5 + i);
-            List<Document> pollutionData = FetchAdapter.getInstance()
-                    .fetchPollutionData(city, d);
-            addDataToCollection(database.getCollection(AppCollection.POLLUTION.getName()), city, d, "pollutionMeasurements", pollutionData);
-            List<Document> weatherCondition = FetchAdapter.getInstance()
-                    .fetchHistoricalData(city, d);
-            addDataToCollection(database.getCollection(AppCollection.PAST_WEATHER.getName()),city, d, "weatherCondition", weatherCondition);
+        // weather and pollution of the same day are fetched at the same time
+        try(IngestionPipeline pipeline = new IngestionPipeline(null)) {
+            for(int i=0; i<5; i++) {
+                LocalDate d = LocalDate.now().minusDays(5 + i);
+                pipeline.submit(MeasureSource.POLLUTION, city, d);
+                pipeline.submit(MeasureSource.PAST_WEATHER, city, d);
+            }
+            pipeline.submit(MeasureSource.FORECAST_WEATHER, city, LocalDate.now());
+            pipeline.awaitCompletion();
         }
-
-        List<Document> weatherForecast = FetchAdapter.getInstance().fetchForecastData(city, LocalDate.now());
-        addDataToCollection(database.getCollection(AppCollection.FORECAST_WEATHER.getName()), city, LocalDate.now(), "weatherForecast", weatherForecast);
     }
 
-    private HashMap<City.CityName, ArrayList<MeasureValue>> parsePollutionList(
-            AggregateIterable<Document> aggregateList, String arrayName) {
-        HashMap<City.CityName, ArrayList<MeasureValue>> cityMap = new HashMap<>();
 
-        for(Document d : aggregateList) { // iterate by city first
-            City.CityName city = new City.CityName(d.getString("country"), d.getString("city"));
-
-            // iterate dates (day only)
-            List<Document> daylist = d.getList(arrayName, Document.class);
-            for(Document dd : daylist) {
-                LocalDateTime day = dd.get("datetime", LocalDateTime.class);
-                // iterate pollutants
-                List<Document> pollutants = dd.getList("pollutants", Document.class);
-                for(Document ddd : pollutants) {
-                    MeasureValue m = new MeasureValue(day, city,
-                            ddd.getString("pollutant"),
-                            ddd.getDouble("value"),
-                            ddd.getString("unit"));
-
-                    if(!cityMap.containsKey(city))
-                        cityMap.put(city, new ArrayList<>());
-                    cityMap.get(city).add(m);
-                }
-            }
-        }
-
-        return cityMap;
-    }
 
 
 /*
@@ -486,7 +560,6 @@ public class MongoDBManager {
                                 .append("coordinates", new Document("type", "point").append("coordinates", city.getCoords().asList()))
                                 .append("periodStart", weekStart)
                                 .append("periodEnd", weekEnd)
-                                .append("enabled", true)
                                 .append(arrayname, mongoHourlyList));
 
                 //filter document
@@ -574,90 +647,53 @@ public class MongoDBManager {
     }
 */
 
-    private void addDataToCollection (MongoCollection<Document> collection, City city, LocalDate day,
-                                      String arrayname, List<Document> mongoHourlyList) {
-
-        LocalDateTime[] weekrange = FetchUtils.getWeekPeriod(day);
-        LocalDateTime weekStart = weekrange[0];
-        LocalDateTime weekEnd = weekrange[1];
-
-        // Create query and update BSON Documents
-        Document updatedoc = new Document()
-                .append("$setOnInsert", new Document()
-                        .append("country",city.getCountry()).append("city", city.getCity())
-                        .append("coordinates", new Document("type", "point").append("coordinates", city.getCoords().asList()))
-                        .append("periodStart", weekStart)
-                        .append("periodEnd", weekEnd)
-                        .append("enabled", true)
-                        .append(arrayname, mongoHourlyList));
-
-        //filter document
-        Document filterDoc = new Document("city", city.getCity())
-                .append("country", city.getCountry())
-                .append("periodStart", weekStart)
-                .append("periodEnd", weekEnd);
-
-        // Update or insert (upsert) collection on MongoDB
-        System.out.println(FetchUtils.toJson(filterDoc));
-        System.out.println(arrayname + " " + day);
-        //System.out.println(FetchUtils.toJson(updatedoc));
-
-        if (collection.updateOne(filterDoc, updatedoc, new UpdateOptions().upsert(true)).getMatchedCount() > 0) {
-            //array of operation to execute in bulk
-            List<UpdateOneModel<Document>> operations = new ArrayList<UpdateOneModel<Document>>();
-
-            for (Document measurement : mongoHourlyList) {
-                LocalDateTime datetime = (LocalDateTime) measurement.get("datetime");
-                List<Document> newMeasures = (List<Document>) measurement.get("measurements");
-
-                //pull measurement if exists
-                Document pullDocument;
-                if (arrayname.equals("pollutionMeasurements")) {
-                    String location = (String) measurement.get("location");
-                    pullDocument = new Document("$pull", new Document(arrayname, new Document("location", location).append("datetime", datetime)));
-                } else
-                    pullDocument = new Document("$pull", new Document(arrayname, new Document("datetime", datetime)));
-
-                operations.add(new UpdateOneModel<>(filterDoc, pullDocument));
-            }
-
-            Document pushDocument = new Document("$push", new Document(arrayname, new Document("$each", mongoHourlyList)));
-            operations.add(new UpdateOneModel<>(filterDoc, pushDocument));
-
-            if (operations.size() > 0) {
-                collection.bulkWrite((List<? extends WriteModel<? extends Document>>) operations);
-                System.out.println("Bulk Update Done");
-            }
-        }
-    }
-
-
     public HashSet<LocalDate> getPastWeatherAvailableDates(City city) {
-        return getAvailableDates(city, AppCollection.PAST_WEATHER, "weatherCondition");
+        return DateAvailability.getInstance().getAvailableDates(city, MeasureSource.PAST_WEATHER);
     }
 
     public HashSet<LocalDate> getForecastWeatherAvailableDates(City city) {
-        return getAvailableDates(city, AppCollection.FORECAST_WEATHER, "weatherForecast");
+        return DateAvailability.getInstance().getAvailableDates(city, MeasureSource.FORECAST_WEATHER);
     }
 
     public HashSet<LocalDate> getPollutionAvailableDates(City city) {
-        return getAvailableDates(city, AppCollection.POLLUTION, "pollutionMeasurements");
+        return DateAvailability.getInstance().getAvailableDates(city, MeasureSource.POLLUTION);
     }
 
-    public HashSet<LocalDate> getAvailableDates(City city, AppCollection appCollection, String arrayName) {
-        List<Bson> pipeline = Arrays.asList(
-                match(and(eq("city", city.getCity()), eq("country", city.getCountry())
+    /**
+     * Available dates of all measure collections with a single read
+     */
+    public EnumMap<MeasureSource, HashSet<LocalDate>> getAvailableDates(City city) {
+        return DateAvailability.getInstance().getAvailableDates(city);
+    }
+
+    /**
+     * Aggregation producing { date } documents of the days with stored hours of a city, targeted by its shard key prefix
+     */
+    static List<Bson> availableDatesPipeline(City city, String arrayName) {
+        // hour documents of time-series collections have a single datetime, $unwind keeps it as is
+        boolean timeSeries = MeasureStorage.isTimeSeries();
+        String prefix = timeSeries ? MeasureStorage.META + "." : "";
+        return Arrays.asList(
+                match(and(eq(prefix + "city", city.getCity()), eq(prefix + "country", city.getCountry())
                         )),
-                unwind("$"+arrayName+""),
-                project(fields(excludeId(), computed("year", eq("$year", "$"+arrayName+".datetime")),
-                        computed("month", eq("$month", "$"+arrayName+".datetime")),
-                        computed("day", eq("$dayOfMonth", "$"+arrayName+".datetime")))),
+                project(fields(excludeId(), computed("datetime",
+                        timeSeries ? "$datetime" : BucketFormat.datetimesExpression(arrayName)))),
+                unwind("$datetime"),
+                project(fields(excludeId(), computed("year", eq("$year", "$datetime")),
+                        computed("month", eq("$month", "$datetime")),
+                        computed("day", eq("$dayOfMonth", "$datetime")))),
                 group(and(eq("year", "$year"), eq("month", "$month"), eq("day", "$day")),
                         sum("count", 1L)),
                 project(fields(excludeId(), computed("date", eq("$dateFromParts",
                         and(eq("year", "$_id.year"), eq("month", "$_id.month"),
                                 eq("day", "$_id.day")))))));
+    }
 
+    /**
+     * Available dates computed from raw measures, used to backfill DateAvailability
+     */
+    public HashSet<LocalDate> getAvailableDates(City city, AppCollection appCollection, String arrayName) {
+        List<Bson> pipeline = availableDatesPipeline(city, arrayName);
         HashSet<LocalDate> resultSet = new HashSet<>();
 
         MongoCollection<Document> collection = appCollection.get(database);
@@ -668,46 +704,156 @@ public class MongoDBManager {
         return resultSet;
     }
 
-    // TODO: hours are not discretized
+    /**
+     * Index backed filter matching any of cities, on (country, city) prefix of measure and rollup indexes.
+     * cities must not be empty, the server rejects an $or of nothing: callers return an empty result first.
+     */
+    static Bson cityFilter(Collection<City> cities) {
+        List<Bson> filters = new ArrayList<>();
+        for(City c : cities)
+            filters.add(and(eq("country", c.getCountry()), eq("city", c.getCity())));
+        return (filters.size() == 1) ? filters.get(0) : or(filters);
+    }
+
+    private interface RawMeasureQuery {
+        HashMap<City.CityName, ArrayList<MeasureValue>> run(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities);
+    }
+
+    /**
+     * Open a streaming cursor on measures of many cities. Rollups of all cities are read with one query,
+     * batchSize documents per round trip; hours before the rollup watermark (see MeasureRollups.getRawRange),
+     * e.g. written before rollups existed, are aggregated from raw buckets for all cities together and merged
+     * in order.
+     */
+    private MeasureCursor openMeasureCursor(MeasureSource source, MeasureRollups.Resolution resolution,
+                                            LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities,
+                                            int batchSize) {
+        if(cities.isEmpty())
+            return new MeasureCursor(null, null);
+
+        LocalDateTime from = (resolution == MeasureRollups.Resolution.HOUR) ? startDate.truncatedTo(ChronoUnit.HOURS)
+                : (resolution == MeasureRollups.Resolution.DAY) ? startDate.toLocalDate().atStartOfDay()
+                : startDate.toLocalDate().withDayOfMonth(1).atStartOfDay();
+        // without rollups everything is raw
+        LocalDateTime[] rawRange = new LocalDateTime[]{null, null};
+        MongoCursor<Document> rollupCursor = null;
+        if(MeasureRollups.getInstance().isEnabled()) {
+            rawRange = MeasureRollups.getInstance().getRawRange(source, resolution);
+            List<City.CityName> cityNames = new ArrayList<>();
+            for(City c : cities)
+                cityNames.add(c.getCityName());
+            rollupCursor = MeasureRollups.getInstance().cursor(source, resolution, cityNames, from, endDate, rawRange, batchSize);
+        }
+        if(rawRange == null)
+            return new MeasureCursor(rollupCursor, null);
+
+        LocalDateTime rawFrom = (rawRange[0] == null || from.isAfter(rawRange[0])) ? from : rawRange[0];
+        LocalDateTime rawTo = (rawRange[1] == null || endDate.isBefore(rawRange[1])) ? endDate : rawRange[1].minusSeconds(1);
+        if(rawFrom.isAfter(rawTo))
+            return new MeasureCursor(rollupCursor, null);
+        return new MeasureCursor(rollupCursor, () -> {
+            List<MeasureValue> values = new ArrayList<>();
+            HashMap<City.CityName, ArrayList<MeasureValue>> rawResult = rawQueryFor(source, resolution).run(rawFrom, rawTo, cities);
+            if(rawResult != null)
+                for(ArrayList<MeasureValue> cityValues : rawResult.values())
+                    values.addAll(cityValues);
+            return values;
+        });
+    }
+
+    /**
+     * Raw bucket aggregation equivalent to a rollup resolution
+     */
+    private RawMeasureQuery rawQueryFor(MeasureSource source, MeasureRollups.Resolution resolution) {
+        AppCollection appCollection = source.getAppCollection();
+        switch (resolution) {
+            case HOUR:
+                if(source == MeasureSource.POLLUTION)
+                    return this::getHourlyPollutionRaw;
+                return (startDate, endDate, cities) -> getHourlyWeatherRaw(startDate, endDate, appCollection, cities);
+            case DAY:
+                if(source == MeasureSource.POLLUTION)
+                    return this::getDailyPollutionRaw;
+                return (startDate, endDate, cities) -> getDailyWeatherRaw(startDate, endDate, appCollection, cities);
+            default:
+                return (startDate, endDate, cities) -> MeasureResampler.getInstance().rawResample(source,
+                        MeasureResampler.Granularity.MONTH, MeasureResampler.Aggregation.AVG, startDate, endDate, cities);
+        }
+    }
+
+    /**
+     * Stream measures of many cities without materializing the whole result.
+     * Values come sorted by city and datetime; close the cursor if it is not fully consumed.
+     * @param resolution HOUR, DAY or MONTH
+     * @param batchSize documents per round trip
+     */
+    public MeasureCursor streamMeasures(MeasureSource source, MeasureRollups.Resolution resolution,
+                                        LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities, int batchSize) {
+        return openMeasureCursor(source, resolution, startDate, endDate, cities, batchSize);
+    }
+
+    public MeasureCursor streamMeasures(MeasureSource source, MeasureRollups.Resolution resolution,
+                                        LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        return streamMeasures(source, resolution, startDate, endDate, cities,
+                SettingsManager.MAINSETTINGS.getOrSetDefault("query", "batchSize", 1000));
+    }
+
+    /**
+     * Push measures to consumer as they are read, in constant memory when rollups are available
+     */
+    public void forEachMeasure(MeasureSource source, MeasureRollups.Resolution resolution,
+                               LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities,
+                               Consumer<MeasureValue> consumer) {
+        try(MeasureCursor cursor = streamMeasures(source, resolution, startDate, endDate, cities)) {
+            cursor.forEachRemaining(consumer);
+        }
+    }
+
+    private HashMap<City.CityName, ArrayList<MeasureValue>> queryMeasures(MeasureSource source, MeasureRollups.Resolution resolution,
+                                                                          LocalDateTime startDate, LocalDateTime endDate,
+                                                                          Collection<City> cities) {
+        HashMap<City.CityName, ArrayList<MeasureValue>> result = new HashMap<>();
+        try(MeasureCursor cursor = openMeasureCursor(source, resolution, startDate, endDate, cities, 0)) {
+            while(cursor.hasNext()) {
+                MeasureValue m = cursor.next();
+                if(!result.containsKey(m.cityName))
+                    result.put(m.cityName, new ArrayList<>());
+                result.get(m.cityName).add(m);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Measures of many cities resampled to any granularity (15 minutes to month) with the given aggregation,
+     * see MeasureResampler
+     */
+    public HashMap<City.CityName, ArrayList<MeasureValue>> resample(MeasureSource source, MeasureResampler.Granularity granularity,
+                                                                    MeasureResampler.Aggregation aggregation,
+                                                                    LocalDateTime startDate, LocalDateTime endDate,
+                                                                    Collection<City> cities) {
+        if(startDate.compareTo(endDate) > 0)
+            return null;
+        return MeasureResampler.getInstance().resample(source, granularity, aggregation, startDate, endDate, cities);
+    }
+
     public HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyPollution(LocalDateTime startDate, LocalDateTime endDate, City selectedCity) {
+        return getHourlyPollution(startDate, endDate, Collections.singletonList(selectedCity));
+    }
+
+    /**
+     * Hourly pollution of many cities with one query
+     */
+    public HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyPollution(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
         if(startDate.compareTo(endDate) > 0)
             return null;
 
-        MongoCollection<Document> collection = AppCollection.POLLUTION.get(database);
-
-        List<Bson> pipeline = Arrays.asList(
-                    match(and(lte("periodStart", endDate), gte("periodEnd", startDate),
-                            eq("city", selectedCity.getCity()),
-                            eq("country", selectedCity.getCountry()))),
-                    unwind("$pollutionMeasurements"),
-                    match(and(lte("pollutionMeasurements.datetime", endDate),
-                            gte("pollutionMeasurements.datetime", startDate))),
-                    unwind("$pollutionMeasurements.measurements"),
-                    project(fields(include("city", "country", "coordinfates"), excludeId(),
-                            computed("pollutionMeasurements.year", eq("$year", "$pollutionMeasurements.datetime")),
-                            computed("pollutionMeasurements.month", eq("$month", "$pollutionMeasurements.datetime")),
-                            computed("pollutionMeasurements.day", eq("$dayOfMonth", "$pollutionMeasurements.datetime")),
-                            computed("pollutionMeasurements.hour", eq("$hour", "$pollutionMeasurements.datetime")),
-                            computed("measurement", "$pollutionMeasurements.measurements"))),
-                    group(and(eq("city", "$city"), eq("country", "$country"),
-                            eq("year", "$pollutionMeasurements.year"), eq("month", "$pollutionMeasurements.month"),
-                            eq("day", "$pollutionMeasurements.day"), eq("hour", "$pollutionMeasurements.hour"),
-                            eq("pollutant", "$measurement.name"), eq("unit", "$measurement.unit")),
-                            avg("value", "$measurement.value")),
-                    group(and(eq("city", "$_id.city"), eq("country", "$_id.country"),
-                            eq("datetime", eq("$dateFromParts", and(eq("year", "$_id.year"),
-                                    eq("month", "$_id.month"), eq("day", "$_id.day"),
-                                    eq("hour", "$_id.hour"))))),
-                            push("measurements", and(eq("pollutant", "$_id.pollutant"),
-                                    eq("unit", "$_id.unit"), eq("value", "$value")))),
-                    group(and(eq("city", "$_id.city"), eq("country", "$_id.country")),
-                            push("hourlymeasurements", and(eq("datetime", "$_id.datetime"),
-                                    eq("pollutants", "$measurements")))),
-                    project(fields(excludeId(), computed("city", "$_id.city"),
-                            computed("country", "$_id.country"), include("hourlymeasurements"))));
-
-        AggregateIterable<Document> aggregateList = collection.aggregate(pipeline);
-        return parsePollutionList(aggregateList, "hourlymeasurements");
+        return queryMeasures(MeasureSource.POLLUTION, MeasureRollups.Resolution.HOUR, startDate, endDate, cities);
+    }
+
+    private HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyPollutionRaw(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        return MeasureResampler.getInstance().rawResample(MeasureSource.POLLUTION, MeasureResampler.Granularity.HOUR,
+                MeasureResampler.Aggregation.AVG, startDate, endDate, cities);
     }
 
 
@@ -716,41 +862,22 @@ public class MongoDBManager {
     }
 
     public HashMap<City.CityName, ArrayList<MeasureValue>> getDailyPollution(LocalDateTime startDate, LocalDateTime endDate, City selectedCity) {
+        return getDailyPollution(startDate, endDate, Collections.singletonList(selectedCity));
+    }
+
+    /**
+     * Daily pollution of many cities with one query
+     */
+    public HashMap<City.CityName, ArrayList<MeasureValue>> getDailyPollution(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
         if(startDate.compareTo(endDate) > 0)
             return null;
 
-        MongoCollection<Document> collection = AppCollection.POLLUTION.get(database);
-
-        List<Bson> pipeline = Arrays.asList(match(and(lt("periodStart",
-                endDate), gte("periodEnd",
-                startDate), eq("city", selectedCity.getCity()), eq("country", selectedCity.getCountry()))),
-                unwind("$pollutionMeasurements"),
-                match(and(lte("pollutionMeasurements.datetime", endDate),
-                        gte("pollutionMeasurements.datetime", startDate))),
-                unwind("$pollutionMeasurements.measurements"),
-                project(fields(include("city", "country", "coordinates"), excludeId(),
-                        computed("pollutionMeasurements.year", eq("$year", "$pollutionMeasurements.datetime")),
-                        computed("pollutionMeasurements.month", eq("$month", "$pollutionMeasurements.datetime")),
-                        computed("pollutionMeasurements.day", eq("$dayOfMonth", "$pollutionMeasurements.datetime")),
-                        computed("pollutionMeasurements.hour", eq("$hour", "$pollutionMeasurements.datetime")),
-                        computed("measurement", "$pollutionMeasurements.measurements"))),
-                group(and(eq("city", "$city"), eq("country", "$country"),
-                        eq("year", "$pollutionMeasurements.year"), eq("month", "$pollutionMeasurements.month"),
-                        eq("day", "$pollutionMeasurements.day"), eq("pollutant", "$measurement.name"),
-                        eq("unit", "$measurement.unit")), avg("value", "$measurement.value")),
-                group(and(eq("city", "$_id.city"), eq("country", "$_id.country"),
-                        eq("datetime", eq("$dateFromParts",and(eq("year", "$_id.year"),
-                                eq("month", "$_id.month"), eq("day", "$_id.day"))))),
-                        push("pollutants", and(eq("pollutant", "$_id.pollutant"),
-                                eq("unit", "$_id.unit"), eq("value", "$value")))),
-                group(and(eq("city", "$_id.city"), eq("country", "$_id.country")),
-                        push("dailymeasurements", and(eq("datetime", "$_id.datetime"),
-                                eq("pollutants", "$pollutants")))),
-                project(fields(excludeId(), computed("city", "$_id.city"),
-                        computed("country", "$_id.country"), include("dailymeasurements"))));
-
-        AggregateIterable<Document> aggregateList = collection.aggregate(pipeline);
-        return parsePollutionList(aggregateList, "dailymeasurements");
+        return queryMeasures(MeasureSource.POLLUTION, MeasureRollups.Resolution.DAY, startDate, endDate, cities);
+    }
+
+    private HashMap<City.CityName, ArrayList<MeasureValue>> getDailyPollutionRaw(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        return MeasureResampler.getInstance().rawResample(MeasureSource.POLLUTION, MeasureResampler.Granularity.DAY,
+                MeasureResampler.Aggregation.AVG, startDate, endDate, cities);
     }
 
     public void updateUserStatus (User user, int status) {
@@ -781,12 +908,12 @@ public class MongoDBManager {
 
 
     /**
-     * Update location status
+     * Update location status. The status is only stored in the location document: measure documents do not
+     * copy it, so a toggle is a single update whatever the amount of data of the city.
      * @param city to be updated
      * @param enabled new status to apply
      * @return new location status (just for atomicity)
      */
-    // TODO: we should update redundancy in all the measures collection
     public boolean updateCityStatus(City city, boolean enabled) {
         MongoCollection<Document> collection = AppCollection.LOCATIONS.get(database);
 
@@ -795,13 +922,6 @@ public class MongoDBManager {
                 new Document("$set", new Document("enabled", enabled)),
                 new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
 
-        //update measurements documents
-        String[] collectionNames = {AppCollection.POLLUTION.getName(), AppCollection.FORECAST_WEATHER.getName(), AppCollection.PAST_WEATHER.getName()};
-        for (String collectionName : collectionNames) {
-            collection = database.getCollection(collectionName);
-            collection.updateMany(and(eq("country", city.getCountry()), eq("city", city.getCity())), new Document("$set", new Document("enabled", enabled)));
-        }
-
         return updatedLocationDocument.getBoolean("enabled");
     }
 
@@ -829,42 +949,35 @@ public class MongoDBManager {
         return getHourlyWeather(startDate, endDate, "weatherForecast", AppCollection.FORECAST_WEATHER, selectedCity);
     }
 
+    public HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyForecastWeather(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        return getHourlyWeather(startDate, endDate, "weatherForecast", AppCollection.FORECAST_WEATHER, cities);
+    }
+
     public HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyPastWeather(LocalDateTime startDate, LocalDateTime endDate, City selectedCity) {
         return getHourlyWeather(startDate, endDate, "weatherCondition", AppCollection.PAST_WEATHER, selectedCity);
     }
 
+    public HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyPastWeather(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        return getHourlyWeather(startDate, endDate, "weatherCondition", AppCollection.PAST_WEATHER, cities);
+    }
+
     public HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyWeather(LocalDateTime startDate, LocalDateTime endDate, String arrayName, AppCollection collectionName, City selectedCity) {
+        return getHourlyWeather(startDate, endDate, arrayName, collectionName, Collections.singletonList(selectedCity));
+    }
 
-        List<Bson> pipeline = Arrays.asList(match(and(lt("periodStart", endDate), gte("periodEnd", startDate)
-                )), unwind("$"+arrayName),
-                match(and(lt(arrayName+".datetime", endDate), gte(arrayName + ".datetime", startDate))),
-                unwind("$"+arrayName+".measurements"),
-                project(fields(include("city", "country", "coordinates"), excludeId(),
-                        computed("weather.year", eq("$year", "$"+arrayName+".datetime")),
-                        computed("weather.month", eq("$month", "$"+arrayName+".datetime")),
-                        computed("weather.day", eq("$dayOfMonth", "$"+arrayName+".datetime")),
-                        computed("weather.hour", eq("$hour", "$"+arrayName+".datetime")),
-                        computed("measurement", "$"+arrayName+".measurements"))),
-                group(and(eq("city", "$city"), eq("country", "$country"),
-                        eq("year", "$weather.year"), eq("month", "$weather.month"),
-                        eq("day", "$weather.day"), eq("hour", "$weather.hour"),
-                        eq("condition", "$measurement.name"), eq("unit", "$measurement.unit")),
-                        avg("avg", "$measurement.value"), push("list", and(eq("hour", "$weather.hour"),
-                                eq("sky", "$measurement.value")))),
-                new Document("$project", new Document("_id", "$_id").append("value", new Document("$cond", new Document("if",
-                        new Document("$eq", Arrays.asList("$avg", new BsonNull()))).append("then", "$list").append("else", "$avg")))),
-                group(and(eq("city", "$_id.city"), eq("country", "$_id.country")),
-                        push("measurements", and(eq("datetime", eq("$dateFromParts",
-                        and(eq("year", "$_id.year"), eq("month", "$_id.month"),
-                        eq("day", "$_id.day"), eq("hour", "$_id.hour")))),
-                        eq("condition", "$_id.condition"), eq("unit", "$_id.unit"),
-                        eq("value", "$value")))),
-                project(fields(excludeId(), computed("city", "$_id.city"),
-                        computed("country", "$_id.country"), include("measurements"))));
+    /**
+     * Hourly weather of many cities with one query
+     */
+    public HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyWeather(LocalDateTime startDate, LocalDateTime endDate, String arrayName,
+                                                                            AppCollection collectionName, Collection<City> cities) {
+        return queryMeasures(MeasureSource.fromCollectionName(collectionName.getName()), MeasureRollups.Resolution.HOUR,
+                startDate, endDate, cities);
+    }
 
-        MongoCollection<Document> collection = collectionName.get(database);
-        AggregateIterable<Document> aggregateList = collection.aggregate(pipeline);
-        return parseWeatherList(aggregateList, "");
+    private HashMap<City.CityName, ArrayList<MeasureValue>> getHourlyWeatherRaw(LocalDateTime startDate, LocalDateTime endDate,
+                                                                                AppCollection collectionName, Collection<City> cities) {
+        return MeasureResampler.getInstance().rawResample(MeasureSource.fromCollectionName(collectionName.getName()),
+                MeasureResampler.Granularity.HOUR, MeasureResampler.Aggregation.AVG, startDate, endDate, cities);
     }
 
     public HashMap<City.CityName, ArrayList<MeasureValue>> getDailyPastWeather(LocalDate startDate, LocalDate endDate, City selectedCity) {
@@ -872,9 +985,16 @@ public class MongoDBManager {
     }
 
     public HashMap<City.CityName, ArrayList<MeasureValue>> getDailyPastWeather(LocalDateTime startDate, LocalDateTime endDate, City selectedCity) {
+        return getDailyPastWeather(startDate, endDate, Collections.singletonList(selectedCity));
+    }
+
+    /**
+     * Daily past weather of many cities with one query
+     */
+    public HashMap<City.CityName, ArrayList<MeasureValue>> getDailyPastWeather(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
         /*if(startDate.isAfter(LocalDateTime.now()) || endDate.isAfter(LocalDateTime.now()))
             throw new IllegalArgumentException("cannot fetch future past weather data");*/
-        return getDailyWeather(startDate, endDate, "weatherCondition", AppCollection.PAST_WEATHER, selectedCity);
+        return getDailyWeather(startDate, endDate, "weatherCondition", AppCollection.PAST_WEATHER, cities);
     }
 
     public HashMap<City.CityName, ArrayList<MeasureValue>> getDailyForecastWeather(LocalDate startDate, LocalDate endDate, City selectedCity) {
@@ -882,90 +1002,29 @@ public class MongoDBManager {
     }
 
     public HashMap<City.CityName, ArrayList<MeasureValue>> getDailyForecastWeather(LocalDateTime startDate, LocalDateTime endDate, City selectedCity) {
-        return getDailyWeather(startDate, endDate, "weatherForecast", AppCollection.FORECAST_WEATHER, selectedCity);
+        return getDailyForecastWeather(startDate, endDate, Collections.singletonList(selectedCity));
     }
 
-    private HashMap<City.CityName, ArrayList<MeasureValue>> getDailyWeather(LocalDateTime startDate, LocalDateTime endDate,
-                                                                            String arrayName, AppCollection collectionName, City selectedCity) {
-        List<Bson> pipeline = Arrays.asList(match(and(lte("periodStart", endDate), gte("periodEnd", startDate),
-                eq("city", selectedCity.getCity()), eq("country", selectedCity.getCountry()))),
-                unwind("$"+arrayName),
-                match(and(lte(arrayName+".datetime", endDate), gte(arrayName+".datetime", startDate))),
-                unwind("$"+arrayName+".measurements"),
-                project(fields(include("city", "country", "coordinates"), excludeId(),
-                        computed("weather.year", eq("$year", "$"+arrayName+".datetime")),
-                        computed("weather.month", eq("$month", "$"+arrayName+".datetime")),
-                        computed("weather.day", eq("$dayOfMonth", "$"+arrayName+".datetime")),
-                        computed("weather.hour", eq("$hour", "$"+arrayName+".datetime")),
-                        computed("measurement", "$"+arrayName+".measurements"))),
-                group(and(eq("city", "$city"), eq("country", "$country"),
-                        eq("year", "$weather.year"), eq("month", "$weather.month"),
-                        eq("day", "$weather.day"), eq("condition", "$measurement.name"),
-                        eq("unit", "$measurement.unit")), avg("avg", "$measurement.value"),
-                        push("list", and(eq("hour", "$weather.hour"),
-                                eq("sky", "$measurement.value")))),
-                new Document("$project", new Document("_id", "$_id").append("value", new Document("$cond", new Document("if",
-                        new Document("$eq", Arrays.asList("$avg", new BsonNull()))).append("then", "$list").append("else", "$avg")))),
-                group(and(eq("city", "$_id.city"), eq("country", "$_id.country")),
-                        push("measurements", and(eq("datetime", eq("$dateFromParts",
-                                and(eq("year", "$_id.year"), eq("month", "$_id.month"),
-                                        eq("day", "$_id.day")))), eq("condition", "$_id.condition"),
-                                eq("unit", "$_id.unit"), eq("value", "$value")))),
-                project(fields(excludeId(), computed("city", "$_id.city"),
-                        computed("country", "$_id.country"), include("measurements"))));
-
-        MongoCollection<Document> collection = collectionName.get(database);
-        AggregateIterable<Document> aggregateList = collection.aggregate(pipeline);
-        return parseWeatherList(aggregateList, "");
-    }
-
-    private HashMap<City.CityName, ArrayList<MeasureValue>> parseWeatherList(
-            AggregateIterable<Document> aggregateList, String arrayName) {
-        HashMap<City.CityName, ArrayList<MeasureValue>> cityMap = new HashMap<>();
-
-        for(Document d : aggregateList) { // iterate by city first
-            City.CityName city = new City.CityName(d.getString("country"), d.getString("city"));
-
-            // iterate dates (day only)
-            List<Document> daylist = d.getList("measurements", Document.class);
-            for(Document dd : daylist) {
-                LocalDateTime day = dd.get("datetime", LocalDateTime.class);
-                // iterate weather measures
-                MeasureValue m;
-                if(dd.getString("condition").equals("sky")) {
-                    HashMap<String, Integer> skyoccurences = new HashMap<>();
-                    List<Document> skylist = dd.getList("value", Document.class);
-
-                    // iterate sky statuses
-                    for(Document ddd : skylist) {
-                        String skystatus = ddd.get("sky", String.class);
-                        if(!skyoccurences.containsKey(skystatus))
-                            skyoccurences.put(skystatus, 0);
-                        skyoccurences.put(skystatus, skyoccurences.get(skystatus) + 1);
-                    }
+    /**
+     * Daily forecast weather of many cities with one query
+     */
+    public HashMap<City.CityName, ArrayList<MeasureValue>> getDailyForecastWeather(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        return getDailyWeather(startDate, endDate, "weatherForecast", AppCollection.FORECAST_WEATHER, cities);
+    }
 
-                    // found max skystatus occurrence
-                    int maxvalue = -1; String maxsky = "";
-                    for(Map.Entry<String, Integer> entry : skyoccurences.entrySet())
-                        if(entry.getValue() > maxvalue) {
-                            maxvalue = entry.getValue();
-                            maxsky = entry.getKey();
-                        }
+    private HashMap<City.CityName, ArrayList<MeasureValue>> getDailyWeather(LocalDateTime startDate, LocalDateTime endDate,
+                                                                            String arrayName, AppCollection collectionName, Collection<City> cities) {
+        return queryMeasures(MeasureSource.fromCollectionName(collectionName.getName()), MeasureRollups.Resolution.DAY,
+                startDate, endDate, cities);
+    }
 
-                    m = new MeasureValue(day, city, "sky", maxsky, "");
-                }
-                else
-                    m = new MeasureValue(day, city,
-                            dd.getString("condition"), dd.getDouble("value"), dd.getString("unit"));
+    private HashMap<City.CityName, ArrayList<MeasureValue>> getDailyWeatherRaw(LocalDateTime startDate, LocalDateTime endDate,
+                                                                               AppCollection collectionName, Collection<City> cities) {
+        return MeasureResampler.getInstance().rawResample(MeasureSource.fromCollectionName(collectionName.getName()),
+                MeasureResampler.Granularity.DAY, MeasureResampler.Aggregation.AVG, startDate, endDate, cities);
+    }
 
-                if(!cityMap.containsKey(city))
-                    cityMap.put(city, new ArrayList<>());
-                cityMap.get(city).add(m);
-            }
-        }
 
-        return cityMap;
-    }
 
     public void loadMeasure(LocalDateTime startDate, LocalDateTime endDate ) {
 
@@ -977,134 +1036,38 @@ public class MongoDBManager {
     }
 
     public ArrayList<MeasureValue> getWeatherForecastReliability(LocalDateTime startDate, LocalDateTime endDate, City selectedCity) {
-        ArrayList<MeasureValue> resultList = new ArrayList<>();
-
-        HashMap<City.CityName, ArrayList<MeasureValue>> realWeather = getDailyPastWeather(startDate, endDate, selectedCity);
-        HashMap<City.CityName, ArrayList<MeasureValue>> forecastWeather = getDailyForecastWeather(startDate, endDate, selectedCity);
-
-        // oldForecast to HashMap<CityName, HashMap<MeasureTime, HashMap<MeasureType, MeasureValue>>
-        /*HashMap<City.CityName, HashMap<LocalDateTime, HashMap<String, MeasureValue>>> oldForecastHash = new HashMap<>();
-        for(Map.Entry<City.CityName, ArrayList<MeasureValue>> entry: oldForecast.entrySet())
-            for(MeasureValue m : entry.getValue()) {
-                if(!oldForecastHash.containsKey(entry.getKey()))
-                    oldForecastHash.put(entry.getKey(), new HashMap<>());
-                if(!oldForecastHash.get(entry.getKey()).containsKey(m.datetime))
-                    oldForecastHash.get(entry.getKey()).put(m.datetime, new HashMap<>());
-                oldForecastHash.get(entry.getKey()).get(m.datetime).put(m.name, m);
-            }*/
-
-        // oldForecast to HashMap<(CityName, datetime, measurename), MeasureValue>
-        Function<MeasureValue, Integer> getHash = (m) -> Objects.hash(m.cityName, m.datetime, m.name);
-        HashMap<Integer, MeasureValue> oldForecastHash = new HashMap<>();
-        for(Map.Entry<City.CityName, ArrayList<MeasureValue>> entry: realWeather.entrySet())
-            for(MeasureValue m : entry.getValue())
-                oldForecastHash.put(getHash.apply(m), m);
-
-        // iterate dailyForecast for computing measure errors
-        for(Map.Entry<City.CityName, ArrayList<MeasureValue>> entry: forecastWeather.entrySet())
-            for(MeasureValue mForecast : entry.getValue()) {
-                MeasureValue mReal = oldForecastHash.get(getHash.apply(mForecast));
-                if(mReal == null)
-                    continue;
-
-                // skip non numerical values
-                if(!(mReal.getValue() instanceof Double))
-                // mWeather should be also checked, however we are considering the same type of measure
-                    continue;
-
-                double relativeError = (mReal.<Double>getValue() - mForecast.<Double>getValue())/mReal.<Double>getValue();
-                resultList.add(new MeasureValue(mReal.datetime, mReal.cityName, mReal.name, relativeError, "%"));
-            }
+        return getWeatherForecastReliability(startDate, endDate, Collections.singletonList(selectedCity));
+    }
 
-        return resultList;
+    /**
+     * Relative error (real - forecast) / real of daily forecast measures, joined on exact (city, day, measure) keys
+     */
+    public ArrayList<MeasureValue> getWeatherForecastReliability(LocalDateTime startDate, LocalDateTime endDate, Collection<City> cities) {
+        return ForecastReliability.getInstance().getRelativeErrors(startDate, endDate, cities);
     }
 
     public ArrayList<MeasureValue> getPollutionForecast(LocalDate startDate, LocalDate endDate, City selectedCity) {
         return getPollutionForecast(LocalDateTime.of(startDate, LocalTime.MIN), LocalDateTime.of(endDate, LocalTime.MAX), selectedCity);
     }
 
+    /**
+     * Stored pollution forecast, refreshed by PollutionForecastStore when new data is written
+     */
     public ArrayList<MeasureValue> getPollutionForecast(LocalDateTime startDate, LocalDateTime endDate, City selectedCity) {
-        ArrayList<MeasureValue> resultList = new ArrayList<>();
-
-        HashMap<City.CityName, ArrayList<MeasureValue>> currentPollution = getDailyPollution(LocalDateTime.now().minusDays(1), LocalDateTime.now(), selectedCity);
-        HashMap<City.CityName, ArrayList<MeasureValue>> forecastWeather = getDailyForecastWeather(startDate, endDate, selectedCity);
-
-        // oldForecast to HashMap<CityName, HashMap<MeasureTime, HashMap<MeasureType, MeasureValue>>
-        /*HashMap<City.CityName, HashMap<LocalDateTime, HashMap<String, MeasureValue>>> oldForecastHash = new HashMap<>();
-        for(Map.Entry<City.CityName, ArrayList<MeasureValue>> entry: oldForecast.entrySet())
-            for(MeasureValue m : entry.getValue()) {
-                if(!oldForecastHash.containsKey(entry.getKey()))
-                    oldForecastHash.put(entry.getKey(), new HashMap<>());
-                if(!oldForecastHash.get(entry.getKey()).containsKey(m.datetime))
-                    oldForecastHash.get(entry.getKey()).put(m.datetime, new HashMap<>());
-                oldForecastHash.get(entry.getKey()).get(m.datetime).put(m.name, m);
-            }*/
-
-        // currentPollution to HashMap<(CityName, datetime, measurename), MeasureValue>
-        Function<MeasureValue, Integer> getHash = (m) -> Objects.hash(m.cityName, m.datetime, m.name);
-        HashMap<Integer, MeasureValue> pollutionMeasurementHash = new HashMap<>();
-        for(Map.Entry<City.CityName, ArrayList<MeasureValue>> entry: currentPollution.entrySet())
-            for(MeasureValue m : entry.getValue())
-                pollutionMeasurementHash.put(getHash.apply(m), m);
-
-        // forecastWeather to HashMap<(CityName, datetime, measurename), MeasureValue>
-        HashMap<Integer, MeasureValue> weatherForecastHash = new HashMap<>();
-        for(Map.Entry<City.CityName, ArrayList<MeasureValue>> entry: forecastWeather.entrySet())
-            for(MeasureValue m : entry.getValue())
-                weatherForecastHash.put(getHash.apply(m), m);
-
-
-        // compute pollutants values over the last 24h
-        HashMap<Integer, MeasureValue> pollutionMeasurementAverageHash = new HashMap<>();
-        for(Map.Entry<Integer, MeasureValue> entry : pollutionMeasurementHash.entrySet()) {
-            MeasureValue m = entry.getValue();
-            MeasureValue dualValue;
-            if (m.datetime.getDayOfMonth() == LocalDateTime.now().getDayOfMonth())
-                dualValue = pollutionMeasurementHash.get(getHash.apply(new MeasureValue(m.datetime.minusDays(1), m.cityName, m.name, m.value, m.unit)));
-            else
-                dualValue = pollutionMeasurementHash.get(getHash.apply(new MeasureValue(m.datetime.plusDays(1), m.cityName, m.name, m.value, m.unit)));
-            MeasureValue avgValue = new MeasureValue(LocalDateTime.now(), m.cityName, m.name, ((Double) m.value + (dualValue == null ? (Double) m.value : (Double) dualValue.value)/2), m.unit);
-            pollutionMeasurementAverageHash.put(getHash.apply(avgValue), avgValue);
-        }
-
-
-        for (Map.Entry<Integer, MeasureValue> pollutant : pollutionMeasurementAverageHash.entrySet()) {
-            MeasureValue mPoll = pollutant.getValue();
-            for (LocalDateTime i = startDate.toLocalDate().atStartOfDay(); i.getDayOfYear() <= endDate.getDayOfYear(); i = i.plusDays(1)){
-                MeasureValue forecast = null;
-                MeasureValue mWeather = null;
-                switch (mPoll.name) {
-                    case ("o3"): case ("no2"): case ("pm10"): case ("pm25"): case ("so2"): case ("co"): case ("bc"):
-                        mWeather = weatherForecastHash.get(getHash.apply(
-                                new MeasureValue(i, mPoll.cityName, "humidity", mPoll.value, mPoll.unit)));
-                        if (mWeather != null)
-                            forecast = computePollutantForecast(mPoll, mWeather);
-                        break;
-                }
-                if (forecast != null)
-                    resultList.add(forecast);
-            }
-        }
-
-        return resultList;
-    }
-
-    private MeasureValue computePollutantForecast (MeasureValue p, MeasureValue w) {
-        MeasureValue m = new MeasureValue(w.datetime, p.cityName, p.name, p.value, p.unit);
-        if ((Double) w.value > 0.5)
-            m.value = (Double) m.value * (Double) w.value;
-        else
-            m.value = (Double) m.value / (Double) w.value;
-        return m;
+        return PollutionForecastStore.getInstance().getForecast(selectedCity, startDate.toLocalDate(), endDate.toLocalDate());
     }
 
-
     public void dropAllCollections() {
         database.getCollection(AppCollection.USERS.getName()).drop();
         database.getCollection(AppCollection.LOCATIONS.getName()).drop();
         database.getCollection(AppCollection.POLLUTION.getName()).drop();
         database.getCollection(AppCollection.FORECAST_WEATHER.getName()).drop();
         database.getCollection(AppCollection.PAST_WEATHER.getName()).drop();
+        database.getCollection(AppCollection.INGESTION_JOBS.getName()).drop();
+        database.getCollection(AppCollection.AVAILABILITY.getName()).drop();
+        database.getCollection(AppCollection.FORECAST_ACCURACY.getName()).drop();
+        database.getCollection(AppCollection.POLLUTION_FORECAST.getName()).drop();
+        MeasureRollups.getInstance().dropAll();
     }
 
     public static void main(String[] args) throws IOException {
@@ -1143,6 +1106,15 @@ public class MongoDBManager {
             resultUser = MongoDBManager.getInstance().getUserWithPassword("utente-e", "password");
             System.out.println("check 3: " + ((resultUser.equals(eUser)) ? "ok" : "not ok"));
 
+            // measure collections are created in the configured storage mode
+            MeasureStorage.createCollections();
+
+            // rollups and availability are refreshed on every measure write
+            MeasureRollups.getInstance().createIndexes();
+            DateAvailability.getInstance().createIndex();
+            ForecastAccuracyReport.getInstance().createIndex();
+            PollutionForecastStore.getInstance().createIndex();
+
             // try loading pollution measures
             City cityRome = new City("IT", "Roma", true, new City.Coords(41.902782, 12.4963));
             MongoDBManager.getInstance().testMeasureImport(cityRome);
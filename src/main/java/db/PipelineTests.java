@@ -0,0 +1,83 @@
+package main.java.db;
+
+import main.java.City;
+import main.java.measures.MeasureValue;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Benchmark of the raw bucket resampling pipelines: double $unwind against array operators, on the same data
+ */
+public class PipelineTests {
+    public static void main(String[] args) {
+        City city = new City("IT", "Roma", true, new City.Coords(41.9, 12.49));
+        LocalDate endDate = (args.length > 0) ? LocalDate.parse(args[0]) : LocalDate.now().minusDays(1);
+        LocalDateTime start = endDate.minusDays(27).atStartOfDay();
+        LocalDateTime end = endDate.atTime(LocalTime.MAX);
+
+        for(MeasureSource source : MeasureSource.values())
+            for(MeasureResampler.Granularity granularity : Arrays.asList(MeasureResampler.Granularity.HOUR,
+                    MeasureResampler.Granularity.DAY, MeasureResampler.Granularity.WEEK))
+                testPipelineModes(source, granularity, Collections.singletonList(city), start, end);
+    }
+
+    private static final int N = 30;
+
+    /**
+     * Mean and standard deviation of the wall time of N runs, client side decoding included
+     */
+    public static float[] timeWithRepetitions(Supplier<?> testQuery) {
+        long[] values = new long[N];
+
+        // mean
+        float mean = 0;
+        for(int i=0; i<N; i++) {
+            long startTime = System.nanoTime();
+            testQuery.get();
+            values[i] = (System.nanoTime() - startTime) / 1000000;
+            mean += values[i];
+        }
+        mean /= N;
+
+        // sample variance
+        float squareResSum = 0;
+        for(int i=0; i<N; i++)
+            squareResSum += Math.pow(values[i] - mean, 2);
+        squareResSum /= N-1;
+
+        return new float[] { mean, (float)Math.sqrt(squareResSum) };
+    }
+
+    private static Set<String> asStrings(HashMap<City.CityName, ArrayList<MeasureValue>> result) {
+        HashSet<String> strings = new HashSet<>();
+        for(ArrayList<MeasureValue> values : result.values())
+            for(MeasureValue m : values)
+                strings.add(m.toString());
+        return strings;
+    }
+
+    public static void testPipelineModes(MeasureSource source, MeasureResampler.Granularity granularity,
+                                         Collection<City> cities, LocalDateTime start, LocalDateTime end) {
+        System.out.println("## " + source.getCollectionName() + " " + granularity + " avg, " + start.toLocalDate()
+                + ".." + end.toLocalDate());
+
+        HashMap<MeasureResampler.PipelineMode, Set<String>> results = new HashMap<>();
+        for(MeasureResampler.PipelineMode mode : MeasureResampler.PipelineMode.values()) {
+            Supplier<HashMap<City.CityName, ArrayList<MeasureValue>>> testQuery = () -> MeasureResampler.getInstance()
+                    .rawResample(source, granularity, MeasureResampler.Aggregation.AVG, start, end, cities, null, mode);
+            results.put(mode, asStrings(testQuery.get()));
+
+            float[] test = timeWithRepetitions(testQuery);
+            System.out.println("[" + mode + "] " + results.get(mode).size() + " values, execution Time: "
+                    + test[0] + " ms (" + test[1] + " std, " + N + " repetitions)");
+        }
+
+        boolean same = results.get(MeasureResampler.PipelineMode.UNWIND).equals(results.get(MeasureResampler.PipelineMode.ARRAY_OPERATORS));
+        System.out.println("same results: " + (same ? "ok" : "not ok"));
+        System.out.println("## END\n");
+    }
+}
@@ -0,0 +1,257 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import main.java.City;
+import main.java.measures.MeasureValue;
+import org.bson.Document;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Precomputed pollution forecasts, one document per (city, day, pollutant):
+ * { _id, country, city, day, pollutant, value, unit, updatedAt }.
+ * Forecasts of a city are recomputed after its forecast weather or pollution is written (see MeasureBulkWriter.refreshDerived),
+ * reading the measures of many cities with one query and computing each city on a worker pool,
+ * so the UI only needs an indexed read.
+ */
+public class PollutionForecastStore {
+    private static final List<String> POLLUTANTS = Arrays.asList("o3", "no2", "pm10", "pm25", "so2", "co", "bc");
+    private static final int CITIES_PER_QUERY = 100;
+
+    private static PollutionForecastStore INSTANCE = new PollutionForecastStore();
+    public static PollutionForecastStore getInstance() {
+        return INSTANCE;
+    }
+
+    private final int forecastDays;
+    private final boolean refreshOnIngest;
+    private final ExecutorService workers;
+    // cities waiting for an asynchronous refresh, drained by a single thread
+    private final ExecutorService drainer;
+    private final Map<City.CityName, City> pending = new LinkedHashMap<>();
+    // writes of the same city are serialized, refreshes may overlap (ingestion, UI, refreshAll)
+    private final ConcurrentHashMap<City.CityName, Object> cityLocks = new ConcurrentHashMap<>();
+
+    private PollutionForecastStore() {
+        forecastDays = SettingsManager.MAINSETTINGS.getOrSetDefault("pollutionForecast", "days", 8);
+        refreshOnIngest = SettingsManager.MAINSETTINGS.getOrSetDefault("pollutionForecast", "refreshOnIngest", true);
+        int threads = SettingsManager.MAINSETTINGS.getOrSetDefault("pollutionForecast", "threads", Runtime.getRuntime().availableProcessors());
+        workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "pollution-forecast");
+            t.setDaemon(true);
+            return t;
+        });
+        drainer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "pollution-forecast-trigger");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private MongoCollection<Document> getCollection() {
+        return MongoDBManager.getInstance().getCollection(MongoDBManager.AppCollection.POLLUTION_FORECAST);
+    }
+
+    public void createIndex() {
+        getCollection().createIndex(new Document("country", 1).append("city", 1).append("day", 1).append("pollutant", 1),
+                new IndexOptions().unique(true).name("city_day_pollutant_unique"));
+    }
+
+    static MeasureValue computePollutantForecast(MeasureValue p, MeasureValue w) {
+        MeasureValue m = new MeasureValue(w.datetime, p.cityName, p.name, p.value, p.unit);
+        if ((Double) w.value > 0.5)
+            m.value = (Double) m.value * (Double) w.value;
+        else
+            m.value = (Double) m.value / (Double) w.value;
+        return m;
+    }
+
+    /**
+     * Forecast of each pollutant for each day with a humidity forecast, starting from the pollutant average
+     * of the last two days
+     * @param dailyPollution daily pollution of yesterday and today
+     * @param dailyForecastWeather daily forecast weather from today on
+     */
+    static List<MeasureValue> computeForecast(List<MeasureValue> dailyPollution, List<MeasureValue> dailyForecastWeather) {
+        // average pollutants over the last two days
+        LinkedHashMap<String, double[]> sums = new LinkedHashMap<>();
+        HashMap<String, MeasureValue> samples = new HashMap<>();
+        for(MeasureValue m : dailyPollution) {
+            if(!POLLUTANTS.contains(m.name) || !(m.value instanceof Double))
+                continue;
+            if(!sums.containsKey(m.name))
+                sums.put(m.name, new double[2]);
+            sums.get(m.name)[0] += m.<Double>getValue();
+            sums.get(m.name)[1]++;
+            samples.put(m.name, m);
+        }
+
+        List<MeasureValue> result = new ArrayList<>();
+        for(MeasureValue mWeather : dailyForecastWeather) {
+            if(!mWeather.name.equals("humidity") || !(mWeather.value instanceof Double))
+                continue;
+            for(Map.Entry<String, double[]> pollutant : sums.entrySet()) {
+                MeasureValue sample = samples.get(pollutant.getKey());
+                MeasureValue avgValue = new MeasureValue(LocalDateTime.now(), sample.cityName, sample.name,
+                        pollutant.getValue()[0] / pollutant.getValue()[1], sample.unit);
+                result.add(computePollutantForecast(avgValue, mWeather));
+            }
+        }
+        return result;
+    }
+
+    private void writeCity(City.CityName cityName, List<MeasureValue> forecasts, LocalDate today, LocalDateTime updatedAt) {
+        List<WriteModel<Document>> operations = new ArrayList<>();
+        List<Document> ids = new ArrayList<>();
+        for(MeasureValue m : forecasts) {
+            LocalDateTime day = m.datetime.toLocalDate().atStartOfDay();
+            Document id = new Document("country", cityName.getCountry()).append("city", cityName.getCity())
+                    .append("day", day).append("pollutant", m.name);
+            ids.add(id);
+            operations.add(new ReplaceOneModel<>(eq("_id", id),
+                    new Document("_id", id).append("country", cityName.getCountry()).append("city", cityName.getCity())
+                            .append("day", day).append("pollutant", m.name).append("value", m.value)
+                            .append("unit", m.unit).append("updatedAt", updatedAt),
+                    new ReplaceOptions().upsert(true)));
+        }
+
+        synchronized (cityLocks.computeIfAbsent(cityName, k -> new Object())) {
+            if(!operations.isEmpty())
+                getCollection().bulkWrite(operations, new BulkWriteOptions().ordered(false));
+
+            // forecasts not produced by this run (e.g. a pollutant no longer measured) are stale
+            getCollection().deleteMany(and(eq("country", cityName.getCountry()), eq("city", cityName.getCity()),
+                    gte("day", today.atStartOfDay()), nin("_id", ids)));
+        }
+    }
+
+    /**
+     * Recompute and store forecasts of the given cities: measures are read with one query per group of cities,
+     * then each city is computed and written on the worker pool
+     * @return number of cities with at least one forecast
+     */
+    public int refresh(Collection<City> cities) {
+        LocalDate today = LocalDate.now();
+        LocalDateTime updatedAt = LocalDateTime.now();
+        List<City> cityList = new ArrayList<>(cities);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        for(int i=0; i<cityList.size(); i+=CITIES_PER_QUERY) {
+            List<City> group = cityList.subList(i, Math.min(i + CITIES_PER_QUERY, cityList.size()));
+            HashMap<City.CityName, ArrayList<MeasureValue>> pollution = MongoDBManager.getInstance()
+                    .getDailyPollution(today.minusDays(1).atStartOfDay(), today.atTime(LocalTime.MAX), group);
+            HashMap<City.CityName, ArrayList<MeasureValue>> weather = MongoDBManager.getInstance()
+                    .getDailyForecastWeather(today.atStartOfDay(), today.plusDays(forecastDays).atTime(LocalTime.MAX), group);
+
+            for(City city : group) {
+                List<MeasureValue> cityPollution = pollution.getOrDefault(city.getCityName(), new ArrayList<>());
+                List<MeasureValue> cityWeather = weather.getOrDefault(city.getCityName(), new ArrayList<>());
+                results.add(workers.submit(() -> {
+                    List<MeasureValue> forecasts = computeForecast(cityPollution, cityWeather);
+                    writeCity(city.getCityName(), forecasts, today, updatedAt);
+                    return !forecasts.isEmpty();
+                }));
+            }
+        }
+
+        int withForecast = 0;
+        for(Future<Boolean> result : results) {
+            try {
+                if(result.get())
+                    withForecast++;
+            } catch (ExecutionException e) {
+                System.out.println("Pollution forecast refresh failed:");
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return withForecast;
+    }
+
+    public int refreshAll() {
+        List<City> cities = MongoDBManager.getInstance().getCitiesByStatus(true);
+        int withForecast = refresh(cities);
+        System.out.println("Pollution forecasts: " + withForecast + "/" + cities.size() + " cities");
+        return withForecast;
+    }
+
+    /**
+     * Schedule an asynchronous refresh of cities whose forecast weather or pollution has just been written.
+     * Cities notified while a refresh is queued are merged into it.
+     */
+    public void citiesUpdated(Collection<City> cities) {
+        if(!refreshOnIngest)
+            return;
+        synchronized (pending) {
+            boolean scheduled = !pending.isEmpty();
+            for(City city : cities)
+                pending.put(city.getCityName(), city);
+            if(scheduled || pending.isEmpty())
+                return;
+        }
+        drainer.submit(() -> {
+            List<City> toRefresh;
+            synchronized (pending) {
+                toRefresh = new ArrayList<>(pending.values());
+                pending.clear();
+            }
+            try {
+                refresh(toRefresh);
+            } catch (Exception e) {
+                System.out.println("Pollution forecast refresh failed:");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Stored forecasts of a city for the days in [startDate, endDate].
+     * Cities never refreshed are computed on the spot.
+     */
+    public ArrayList<MeasureValue> getForecast(City city, LocalDate startDate, LocalDate endDate) {
+        ArrayList<MeasureValue> result = find(city, startDate, endDate);
+        if(result.isEmpty() && !endDate.isBefore(LocalDate.now())
+                && getCollection().find(and(eq("country", city.getCountry()), eq("city", city.getCity()))).first() == null) {
+            refresh(Collections.singletonList(city));
+            result = find(city, startDate, endDate);
+        }
+        return result;
+    }
+
+    private ArrayList<MeasureValue> find(City city, LocalDate startDate, LocalDate endDate) {
+        ArrayList<MeasureValue> result = new ArrayList<>();
+        MongoCursor<Document> cursor = getCollection().find(and(eq("country", city.getCountry()), eq("city", city.getCity()),
+                gte("day", startDate.atStartOfDay()), lte("day", endDate.atTime(LocalTime.MAX))))
+                .sort(ascending("country", "city", "day", "pollutant")).iterator();
+        try {
+            while (cursor.hasNext()) {
+                Document d = cursor.next();
+                result.add(new MeasureValue(d.get("day", LocalDateTime.class), city.getCityName(),
+                        d.getString("pollutant"), d.get("value"), d.getString("unit")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    public static void main(String[] args) {
+        PollutionForecastStore.getInstance().createIndex();
+        PollutionForecastStore.getInstance().refreshAll();
+    }
+}
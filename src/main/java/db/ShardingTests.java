@@ -0,0 +1,161 @@
+package main.java.db;
+
+import com.mongodb.MongoCommandException;
+import main.java.City;
+import main.java.fetch.FetchUtils;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.MinKey;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+
+/**
+ * Check that the queries and writes of a city on the sharded measure collections are routed to a single shard.
+ * Run it through mongos of a cluster with two shards (see scripts/local-sharded-cluster.sh): the collections are
+ * sharded, split at country "M" and the two halves moved to different shards, then every operation is explained.
+ */
+public class ShardingTests {
+    private static final City LOW_CITY = new City("IT", "Roma", true, new City.Coords(41.9, 12.49));
+    private static final City HIGH_CITY = new City("US", "New York", true, new City.Coords(40.71, -74.0));
+
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        MeasureStorage.createCollections();
+        MeasureStorage.shardCollections();
+        List<String> shards = getShardNames();
+        if(shards.size() < 2) {
+            System.out.println("at least two shards are needed, found " + shards);
+            return;
+        }
+        for(MeasureSource source : MeasureSource.values())
+            splitInTwo(source, shards);
+
+        LocalDate endDate = LocalDate.now().minusDays(1);
+        LocalDateTime start = endDate.minusDays(27).atStartOfDay();
+        LocalDateTime end = endDate.atTime(LocalTime.MAX);
+        for(MeasureSource source : MeasureSource.values()) {
+            System.out.println("## " + source.getCollectionName() + " sharded on " + MeasureStorage.shardKey().toJson());
+            for(City city : Arrays.asList(LOW_CITY, HIGH_CITY))
+                testCity(source, city, start, end);
+
+            // control: without the city prefix the whole cluster is read
+            checkShards("rollup rebuild (all cities)", explainAggregate(source,
+                    MeasureRollups.getInstance().rollupPipeline(source, MeasureRollups.Resolution.DAY, null, null, null)),
+                    2);
+            System.out.println("## END\n");
+        }
+        System.out.println(failures == 0 ? "all operations targeted: ok" : failures + " operations not targeted: not ok");
+    }
+
+    private static void testCity(MeasureSource source, City city, LocalDateTime start, LocalDateTime end) {
+        String name = city.getCity();
+        for(MeasureResampler.PipelineMode mode : MeasureResampler.PipelineMode.values())
+            checkShards(name + " resample " + mode, explainAggregate(source, MeasureResampler.getInstance().rawPipeline(
+                    source, MeasureResampler.Granularity.DAY, MeasureResampler.Aggregation.AVG, start, end,
+                    Collections.singletonList(city), null, mode)), 1);
+        checkShards(name + " stored days", explainAggregate(source, GapPlanner.storedDaysPipeline(source,
+                Collections.singletonList(city.getCityName()), start, end)), 1);
+        checkShards(name + " available dates", explainAggregate(source,
+                MongoDBManager.availableDatesPipeline(city, source.getArrayName())), 1);
+        checkShards(name + " rollup refresh", explainAggregate(source, MeasureRollups.getInstance().rollupPipeline(
+                source, MeasureRollups.Resolution.HOUR, city.getCityName(), start, end)), 1);
+
+        if(!MeasureStorage.isTimeSeries()) {
+            LocalDateTime[] week = FetchUtils.getWeekPeriod(end);
+            checkShards(name + " bucket upsert", explainUpdate(source,
+                    MeasureBulkWriter.bucketFilter(city.getCityName(), week[0], week[1]),
+                    new Document("$set", new Document("periodEnd", week[1])), false), 1);
+        }
+    }
+
+    private static void checkShards(String operation, Document explain, int expected) {
+        int shards = targetedShards(explain);
+        boolean ok = (shards == expected);
+        if(!ok)
+            failures++;
+        System.out.println("[" + operation + "] " + shards + " shard(s), expected " + expected + ": " + (ok ? "ok" : "not ok"));
+    }
+
+    /**
+     * Number of shards an explained operation is sent to by mongos
+     */
+    static int targetedShards(Document explain) {
+        Object shards = explain.get("shards");
+        if(shards instanceof Document)
+            return ((Document)shards).size();
+        Document winningPlan = (Document)((Document)explain.get("queryPlanner")).get("winningPlan");
+        return winningPlan.getList("shards", Document.class).size();
+    }
+
+    private static List<BsonDocument> toBsonDocuments(List<? extends Bson> stages) {
+        List<BsonDocument> result = new ArrayList<>();
+        for(Bson stage : stages)
+            result.add(stage.toBsonDocument(BsonDocument.class, MongoDBManager.getInstance().database.getCodecRegistry()));
+        return result;
+    }
+
+    private static Document explainAggregate(MeasureSource source, List<Bson> pipeline) {
+        return MongoDBManager.getInstance().database.runCommand(new Document("explain",
+                new Document("aggregate", source.getCollectionName()).append("pipeline", toBsonDocuments(pipeline))
+                        .append("cursor", new Document()))
+                .append("verbosity", "queryPlanner"));
+    }
+
+    private static Document explainUpdate(MeasureSource source, Bson filter, Document update, boolean multi) {
+        BsonDocument q = filter.toBsonDocument(BsonDocument.class, MongoDBManager.getInstance().database.getCodecRegistry());
+        return MongoDBManager.getInstance().database.runCommand(new Document("explain",
+                new Document("update", source.getCollectionName()).append("updates", Collections.singletonList(
+                        new Document("q", q).append("u", update).append("multi", multi))))
+                .append("verbosity", "queryPlanner"));
+    }
+
+    private static List<String> getShardNames() {
+        List<String> names = new ArrayList<>();
+        for(Document shard : MongoDBManager.getInstance().runAdminCommand(new Document("listShards", 1))
+                .getList("shards", Document.class))
+            names.add(shard.getString("_id"));
+        return names;
+    }
+
+    /**
+     * Split the chunks of a measure collection at country "M" and put the two halves on different shards
+     */
+    private static void splitInTwo(MeasureSource source, List<String> shards) {
+        String databaseName = MongoDBManager.getInstance().database.getName();
+        // time-series collections are sharded through their buckets collection
+        String namespace = databaseName + "." + (MeasureStorage.isTimeSeries() ? "system.buckets." : "")
+                + source.getCollectionName();
+
+        Document middle = new Document();
+        Document low = new Document();
+        Document high = new Document();
+        for(String field : MeasureStorage.shardKey().keySet()) {
+            boolean first = middle.isEmpty();
+            middle.append(field, first ? (Object)"M" : new MinKey());
+            low.append(field, first ? (Object)"A" : new MinKey());
+            high.append(field, first ? (Object)"Z" : new MinKey());
+        }
+        try {
+            MongoDBManager.getInstance().runAdminCommand(new Document("split", namespace).append("middle", middle));
+        } catch (MongoCommandException e) {
+            System.out.println("split of " + namespace + ": " + e.getErrorMessage());
+        }
+        moveChunk(namespace, low, shards.get(0));
+        moveChunk(namespace, high, shards.get(1));
+    }
+
+    private static void moveChunk(String namespace, Document find, String shard) {
+        try {
+            MongoDBManager.getInstance().runAdminCommand(new Document("moveChunk", namespace).append("find", find)
+                    .append("to", shard).append("_waitForDelete", true));
+        } catch (MongoCommandException e) {
+            // already on that shard
+            System.out.println("moveChunk of " + namespace + " to " + shard + ": " + e.getErrorMessage());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package main.java.db;
+
+import com.mongodb.client.MongoCollection;
+import main.java.City;
+import org.bson.Document;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+
+/**
+ * Benchmark of the storage modes of the measure collections (see MeasureStorage): ingest rate, storage size
+ * and raw query latency on the same synthetic past weather and pollution data.
+ * Drops and recreates the measure collections, so run it against a local scratch mongod (5.0+, 7.0+ to overwrite
+ * time-series hours): java main.java.db.StorageModeTests --drop [cities] [days]
+ */
+public class StorageModeTests {
+    private static final List<MeasureSource> SOURCES = Arrays.asList(MeasureSource.PAST_WEATHER, MeasureSource.POLLUTION);
+    private static final String[] LOCATIONS = { "station-1", "station-2" };
+
+    public static void main(String[] args) {
+        if(args.length == 0 || !args[0].equals("--drop")) {
+            System.out.println("usage: StorageModeTests --drop [cities] [days], measure collections are dropped");
+            return;
+        }
+        int cityCount = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int days = (args.length > 2) ? Integer.parseInt(args[2]) : 56;
+
+        List<City> cities = new ArrayList<>();
+        for(int i=0; i<cityCount; i++)
+            cities.add(new City("XX", "City" + i, true, new City.Coords(40 + i * 0.1, 10 + i * 0.1)));
+        LocalDate endDate = LocalDate.now().minusDays(1);
+        LocalDate startDate = endDate.minusDays(days - 1);
+
+        MeasureStorage.Mode configured = MeasureStorage.getMode();
+        try {
+            for(MeasureStorage.Mode mode : MeasureStorage.Mode.values())
+                testMode(mode, cities, startDate, endDate);
+        } finally {
+            MeasureStorage.setMode(configured);
+        }
+    }
+
+    private static List<Document> syntheticDay(MeasureSource source, LocalDate day, Random random) {
+        List<Document> hours = new ArrayList<>();
+        for(int h=0; h<24; h++) {
+            LocalDateTime datetime = day.atTime(h, 0);
+            if(source == MeasureSource.POLLUTION) {
+                for(String location : LOCATIONS)
+                    hours.add(new Document("datetime", datetime).append("location", location)
+                            .append("measurements", Arrays.asList(
+                                    new Document("name", "pm10").append("value", 10 + random.nextDouble() * 40).append("unit", "µg/m³"),
+                                    new Document("name", "no2").append("value", 5 + random.nextDouble() * 30).append("unit", "µg/m³"))));
+            } else
+                hours.add(new Document("datetime", datetime).append("measurements", Arrays.asList(
+                        new Document("name", "temperature").append("value", 5 + random.nextDouble() * 25).append("unit", "°C"),
+                        new Document("name", "humidity").append("value", 30 + random.nextDouble() * 60).append("unit", "%"),
+                        new Document("name", "pressure").append("value", 990 + random.nextDouble() * 40).append("unit", "mb"),
+                        new Document("name", "sky").append("value", random.nextBoolean() ? "Clear" : "Cloudy").append("unit", ""))));
+        }
+        return hours;
+    }
+
+    public static void testMode(MeasureStorage.Mode mode, List<City> cities, LocalDate startDate, LocalDate endDate) {
+        System.out.println("## " + mode + ", " + cities.size() + " cities, " + startDate + ".." + endDate);
+        MeasureStorage.setMode(mode);
+        for(MeasureSource source : MeasureSource.values())
+            MongoDBManager.getInstance().getCollection(source.getAppCollection()).drop();
+        MeasureRollups.getInstance().dropAll();
+        MeasureStorage.createCollections();
+        MeasureRollups.getInstance().createIndexes();
+
+        // ingest rate, including the rollup and availability refresh of every flush
+        Random random = new Random(42);
+        long hours = 0;
+        long startTime = System.nanoTime();
+        try (MeasureBulkWriter writer = new MeasureBulkWriter()) {
+            for(MeasureSource source : SOURCES) {
+                MongoCollection<Document> collection = MongoDBManager.getInstance().getCollection(source.getAppCollection());
+                for(City city : cities)
+                    for(LocalDate d = startDate; !d.isAfter(endDate); d = d.plusDays(1)) {
+                        List<Document> day = syntheticDay(source, d, random);
+                        writer.add(collection, city, d, source.getArrayName(), day);
+                        hours += day.size();
+                    }
+            }
+        }
+        long millis = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("ingest: " + hours + " hours in " + millis + " ms, " + (hours * 1000 / Math.max(millis, 1)) + " hours/s");
+
+        for(MeasureSource source : SOURCES)
+            System.out.println("size of " + source.getCollectionName() + ": " + BucketStorageReport.getCollectionSize(source)
+                    + " bytes, " + BucketStorageReport.getStorageSize(source) + " bytes on disk");
+
+        // raw queries only, rollups are the same in both modes
+        LocalDateTime start = endDate.minusDays(27).atStartOfDay();
+        LocalDateTime end = endDate.atTime(LocalTime.MAX);
+        for(MeasureSource source : SOURCES)
+            for(MeasureResampler.Granularity granularity : Arrays.asList(MeasureResampler.Granularity.HOUR,
+                    MeasureResampler.Granularity.DAY)) {
+                for(Collection<City> queried : Arrays.asList(cities.subList(0, 1), cities)) {
+                    float[] test = PipelineTests.timeWithRepetitions(() -> MeasureResampler.getInstance().rawResample(
+                            source, granularity, MeasureResampler.Aggregation.AVG, start, end, queried));
+                    System.out.println("[" + source.getCollectionName() + " " + granularity + ", " + queried.size()
+                            + " cities] execution Time: " + test[0] + " ms (" + test[1] + " std)");
+                }
+            }
+        System.out.println("## END\n");
+    }
+}
@@ -1,15 +1,15 @@
 package main.java.fetch;
 
+import main.java.db.SettingsManager;
 import org.json.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.*;
+import java.io.StringReader;
+import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
 
 public class DarkSkyFetcher {
     private static DarkSkyFetcher INSTANCE = new DarkSkyFetcher();
@@ -91,6 +91,57 @@ public class DarkSkyFetcher {
         return new JSONObject(jsonString);
     }
 
+    /**
+     * Streaming version of getTimeMachineData, each hourly record is passed to handler
+     * @return reader whose header holds the top level fields (timezone, ...)
+     */
+    private JsonRecordReader streamTimeMachineData(Double latitude, Double longitude, LocalDate day,
+                                                   JsonRecordReader.RecordHandler handler) throws IOException {
+        long timestamp = Timestamp.valueOf(day.atStartOfDay()).toInstant().getEpochSecond();
+        String[] hourlyPath = new String[]{"hourly", "data"};
+
+        // debug mode and local cache work on whole bodies, as in getTimeMachineData the cache is read only
+        // if enabled but every fetched response is written to it
+        String jsonString = null;
+        if(useLocalCache && localCache != null)
+            jsonString = localCache.getTimeMachineDataString(latitude, longitude, timestamp);
+        if(jsonString == null && debugMode)
+            jsonString = FetchUtils.readResource("darkskyexample.json");
+        if(jsonString == null && localCache != null) {
+            jsonString = FetchUtils.doGet("https://api.darksky.net/forecast/" + apiKey + "/" + latitude + "," + longitude + "," + timestamp + "?units=si");
+            localCache.setTimeMachineData(latitude, longitude, timestamp, jsonString);
+        }
+
+        if(jsonString != null) {
+            JsonRecordReader reader = new JsonRecordReader(new StringReader(jsonString));
+            reader.readRecords(hourlyPath, handler);
+            return reader;
+        }
+
+        return FetchUtils.doGetStream("https://api.darksky.net/forecast/" + apiKey + "/" + latitude + "," + longitude + "," + timestamp + "?units=si",
+                body -> {
+                    JsonRecordReader reader = new JsonRecordReader(body);
+                    reader.readRecords(hourlyPath, handler);
+                    return reader;
+                });
+    }
+
+    public JsonRecordReader streamForecastWeather(Double latitude, Double longitude, LocalDate day,
+                                                  JsonRecordReader.RecordHandler handler) throws IOException {
+        if(day.isBefore(LocalDate.now()))
+            throw new IllegalArgumentException("Cannot fetch forecast of past days");
+
+        return streamTimeMachineData(latitude, longitude, day, handler);
+    }
+
+    public JsonRecordReader streamHistoricalWeather(Double latitude, Double longitude, LocalDate day,
+                                                    JsonRecordReader.RecordHandler handler) throws IOException {
+        if(day.isAfter(LocalDate.now()) || day.isEqual(LocalDate.now()))
+            throw new IllegalArgumentException("Cannot fetch real weather of future days");
+
+        return streamTimeMachineData(latitude, longitude, day, handler);
+    }
+
     public JSONObject getForecastWeather(Double latitude, Double longitude, LocalDate day) throws IOException {
         if(day.isBefore(LocalDate.now()))
             throw new IllegalArgumentException("Cannot fetch forecast of past days");
@@ -105,27 +156,34 @@ public class DarkSkyFetcher {
         return getTimeMachineData(latitude, longitude, day);
     }
 
+    /**
+     * DarkSky responses cache, keyed by the exact (latitude, longitude, timestamp) of the request
+     */
     static class LocalCache {
-        private String cachePath;
+        private final SegmentedResponseCache store;
+
         public LocalCache(String cachePath) throws IOException {
-            this.cachePath = cachePath;
-            Files.createDirectories(Paths.get(cachePath));
+            long maxMB = SettingsManager.MAINSETTINGS.<Integer>getOrSetDefault("darksky", "localCacheMaxMB", 1024);
+            long segmentMB = SettingsManager.MAINSETTINGS.<Integer>getOrSetDefault("darksky", "localCacheSegmentMB", 64);
+            this.store = new SegmentedResponseCache(Paths.get(cachePath), maxMB * 1024 * 1024, segmentMB * 1024 * 1024);
+        }
+
+        private static String key(Double latitude, Double longitude, long timestamp) {
+            return latitude + "," + longitude + "," + timestamp;
         }
 
         public JSONObject getTimeMachineData(Double latitude, Double longitude, long timestamp) throws IOException {
-            int hash = Objects.hash(latitude, longitude, timestamp);
-            String filename = cachePath + File.separator + hash + ".json";
-            if(!Files.exists(Paths.get(filename)))
-                return null;
-            String filecontent = FetchUtils.readFile(filename);
-            return new JSONObject(filecontent);
+            String filecontent = getTimeMachineDataString(latitude, longitude, timestamp);
+            return (filecontent == null) ? null : new JSONObject(filecontent);
+        }
+
+        public String getTimeMachineDataString(Double latitude, Double longitude, long timestamp) throws IOException {
+            return store.get(key(latitude, longitude, timestamp));
         }
 
         public void setTimeMachineData(Double latitude, Double longitude, long timestamp, String json) throws IOException {
-            int hash = Objects.hash(latitude, longitude, timestamp);
-            // overwrite file if it exists already
-            Files.write(Paths.get(cachePath + File.separator + hash + ".json"), json.getBytes(),
-                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE);
+            // a newer response for the same key replaces the old one
+            store.put(key(latitude, longitude, timestamp), json);
         }
     }
 }
@@ -52,6 +52,24 @@ public class FetchAdapter {
         return new Document().append("name", name).append("value", measurement).append("unit", uom);
     }
 
+    private Document weatherRecordToDocument(JSONObject hourdata, TimeZone timezone) {
+        // Get all weather measures for current hour
+        List<Document> mongoHourMeasureList = new ArrayList<>();
+        for(String attributename : hourdata.keySet())
+            // use name map also as a filter
+            if(WEATHERVALUES_NAMEMAP.containsKey(attributename)) {
+                mongoHourMeasureList.add(measureToDocument(
+                        WEATHERVALUES_NAMEMAP.get(attributename),
+                        hourdata.get(attributename),
+                        DarkSkyFetcher.MEASURE_UNITS.get(attributename)));
+            }
+
+        LocalDateTime hourdatetime =
+                LocalDateTime.ofInstant(Instant.ofEpochSecond(hourdata.getLong("time")), timezone.toZoneId());
+        return new Document("datetime", hourdatetime)
+                .append("measurements", mongoHourMeasureList);
+    }
+
     private List<Document> fetchWeatherData(City city, LocalDate day,
                                             JSONObject jsonDoc) throws IOException {
 
@@ -59,59 +77,78 @@ public class FetchAdapter {
         TimeZone timezone = TimeZone.getTimeZone(jsonDoc.getString("timezone"));
 
         JSONArray jsonHourlyList = jsonDoc.getJSONObject("hourly").getJSONArray("data");
-        for(int i=0; i<jsonHourlyList.length(); i++) {
-            JSONObject hourdata = jsonHourlyList.getJSONObject(i);
-
-            // Get all weather measures for current hour
-            List<Document> mongoHourMeasureList = new ArrayList<>();
-            for(String attributename : hourdata.keySet())
-                // use name map also as a filter
-                if(WEATHERVALUES_NAMEMAP.containsKey(attributename)) {
-                    mongoHourMeasureList.add(measureToDocument(
-                            WEATHERVALUES_NAMEMAP.get(attributename),
-                            hourdata.get(attributename),
-                            DarkSkyFetcher.MEASURE_UNITS.get(attributename)));
-                }
+        for(int i=0; i<jsonHourlyList.length(); i++)
+            mongoHourlyList.add(weatherRecordToDocument(jsonHourlyList.getJSONObject(i), timezone));
 
-            LocalDateTime hourdatetime =
-                    LocalDateTime.ofInstant(Instant.ofEpochSecond(hourdata.getLong("time")), timezone.toZoneId());
-            Document hourDoc = new Document("datetime", hourdatetime)
-                    .append("measurements", mongoHourMeasureList);
+        return mongoHourlyList;
+    }
 
-            mongoHourlyList.add(hourDoc);
+    /**
+     * Converts hourly weather records while the DarkSky response is being read
+     */
+    private class WeatherRecordCollector implements JsonRecordReader.RecordHandler {
+        private final List<Document> mongoHourlyList = new ArrayList<>();
+        // records read before "timezone", DarkSky sends it first so this is normally empty
+        private final List<JSONObject> pendingRecords = new ArrayList<>();
+
+        @Override
+        public void onRecord(JSONObject record, JSONObject header) {
+            if(!header.has("timezone"))
+                pendingRecords.add(record);
+            else
+                mongoHourlyList.add(weatherRecordToDocument(record, TimeZone.getTimeZone(header.getString("timezone"))));
         }
 
-        return mongoHourlyList;
+        List<Document> complete(JsonRecordReader reader) {
+            if(!pendingRecords.isEmpty()) {
+                TimeZone timezone = TimeZone.getTimeZone(reader.getHeader().getString("timezone"));
+                for(JSONObject record : pendingRecords)
+                    mongoHourlyList.add(weatherRecordToDocument(record, timezone));
+                pendingRecords.clear();
+            }
+            return mongoHourlyList;
+        }
     }
 
     public List<Document> fetchHistoricalData(City city, LocalDate day) throws IOException {
-        // 1) Get hourly weather data for specified day
+        // 1) Stream hourly weather data for specified day
+        WeatherRecordCollector collector = new WeatherRecordCollector();
+        JsonRecordReader reader = DarkSkyFetcher.getInstance().streamHistoricalWeather(city.getCoords().lat, city.getCoords().lon, day,
+                collector);
+        return collector.complete(reader);
+    }
+
+    public List<Document> fetchForecastData(City city, LocalDate day) throws IOException {
+        // 1) Stream hourly weather data for specified day
+        WeatherRecordCollector collector = new WeatherRecordCollector();
+        JsonRecordReader reader = DarkSkyFetcher.getInstance().streamForecastWeather(city.getCoords().lat, city.getCoords().lon, day,
+                collector);
+        return collector.complete(reader);
+    }
+
+    /**
+     * Old tree based versions of fetchHistoricalData/fetchForecastData, handy when debugging responses
+     */
+    public List<Document> fetchHistoricalDataTree(City city, LocalDate day) throws IOException {
         JSONObject jsonDoc = DarkSkyFetcher.getInstance().getHistoricalWeather(city.getCoords().lat, city.getCoords().lon, day);
         return fetchWeatherData(city, day, jsonDoc);
     }
 
-    public List<Document> fetchForecastData(City city, LocalDate day) throws IOException {
-        // 1) Get hourly weather data for specified day
+    public List<Document> fetchForecastDataTree(City city, LocalDate day) throws IOException {
         JSONObject jsonDoc = DarkSkyFetcher.getInstance().getForecastWeather(city.getCoords().lat, city.getCoords().lon, day);
         return fetchWeatherData(city, day, jsonDoc);
     }
 
-    public List<Document> fetchPollutionData(City city, LocalDate day) throws IOException {
-        JSONObject jsonDoc = OpenAQFetcher.getInstance().getPollutionMeasurements(city.getCountry(), city.getCity(),
-                day.atTime(0,0), day.atTime(23,59));
-
-        LocalDateTime[] weekrange = FetchUtils.getWeekPeriod(day);
-        LocalDateTime weekStart = weekrange[0];
-        LocalDateTime weekEnd = weekrange[1];
-
+    /**
+     * Groups OpenAQ readings by sensor location and datetime
+     */
+    private static class PollutionReadingGrouper implements JsonRecordReader.RecordHandler {
         // Map<SensorLocation, <Datetime, List<Measures>>>
-        HashMap<String, HashMap<LocalDateTime, List<Document>>> locationToDateMeasureMap
+        private final HashMap<String, HashMap<LocalDateTime, List<Document>>> locationToDateMeasureMap
                 = new HashMap<>();
 
-        // Iterate over results and group readings by sensorlocation and datetime
-        JSONArray jsonMeasureList = jsonDoc.getJSONArray("results");
-        for(int i=0; i<jsonMeasureList.length(); i++) {
-            JSONObject hourdata = jsonMeasureList.getJSONObject(i);
+        @Override
+        public void onRecord(JSONObject hourdata, JSONObject header) {
             String parameter = hourdata.getString("parameter");
             String uof = hourdata.getString("unit");
             Float value = hourdata.getFloat("value");
@@ -131,20 +168,67 @@ public class FetchAdapter {
             locationToDateMeasureMap.get(sensorLocation).get(datetime).add(measureDoc);
         }
 
-        // Iterate hashmap by sensorlocation first, then by datetime
-        // for each group create one document with all grouped readings
-        List<Document> finalReadingList = new ArrayList<>();
-        for(Map.Entry<String, HashMap<LocalDateTime, List<Document>>> locationEntry : locationToDateMeasureMap.entrySet()) {
-            String location = locationEntry.getKey();
-            for (Map.Entry<LocalDateTime, List<Document>> dateEntry : locationEntry.getValue().entrySet()) {
-                LocalDateTime datetime = dateEntry.getKey();
-                Document hourdoc = new Document("location", location).append("datetime", datetime)
-                        .append("measurements", dateEntry.getValue());
-                finalReadingList.add(hourdoc);
+        List<Document> toReadingList() {
+            // Iterate hashmap by sensorlocation first, then by datetime
+            // for each group create one document with all grouped readings
+            List<Document> finalReadingList = new ArrayList<>();
+            for(Map.Entry<String, HashMap<LocalDateTime, List<Document>>> locationEntry : locationToDateMeasureMap.entrySet()) {
+                String location = locationEntry.getKey();
+                for (Map.Entry<LocalDateTime, List<Document>> dateEntry : locationEntry.getValue().entrySet()) {
+                    LocalDateTime datetime = dateEntry.getKey();
+                    Document hourdoc = new Document("location", location).append("datetime", datetime)
+                            .append("measurements", dateEntry.getValue());
+                    finalReadingList.add(hourdoc);
+                }
+            }
+            return finalReadingList;
+        }
+
+        /**
+         * Split grouped readings by day, every day of [startDate, endDate] is present even if it has no readings
+         */
+        Map<LocalDate, List<Document>> toReadingsByDay(LocalDate startDate, LocalDate endDate) {
+            TreeMap<LocalDate, List<Document>> result = new TreeMap<>();
+            for(LocalDate d = startDate; !d.isAfter(endDate); d = d.plusDays(1))
+                result.put(d, new ArrayList<>());
+            for(Document hourdoc : toReadingList()) {
+                List<Document> dayList = result.get(((LocalDateTime)hourdoc.get("datetime")).toLocalDate());
+                if(dayList != null)
+                    dayList.add(hourdoc);
             }
+            return result;
         }
+    }
+
+    public List<Document> fetchPollutionData(City city, LocalDate day) throws IOException {
+        return fetchPollutionDataRange(city, day, day).get(day);
+    }
+
+    /**
+     * Fetch pollution of a whole interval with as few requests as possible (one per OpenAQ page)
+     * @return hourly readings grouped by (location, datetime), split by day
+     */
+    public Map<LocalDate, List<Document>> fetchPollutionDataRange(City city, LocalDate startDate, LocalDate endDate) throws IOException {
+        // readings are grouped while the response is being read, the raw body is never held in memory
+        PollutionReadingGrouper grouper = new PollutionReadingGrouper();
+        OpenAQFetcher.getInstance().streamPollutionMeasurementsRange(city.getCountry(), city.getCity(),
+                startDate.atTime(0,0), endDate.atTime(23,59), grouper);
+        return grouper.toReadingsByDay(startDate, endDate);
+    }
+
+    /**
+     * Old tree based version of fetchPollutionData, handy when debugging responses
+     */
+    public List<Document> fetchPollutionDataTree(City city, LocalDate day) throws IOException {
+        JSONObject jsonDoc = OpenAQFetcher.getInstance().getPollutionMeasurements(city.getCountry(), city.getCity(),
+                day.atTime(0,0), day.atTime(23,59));
 
-        return finalReadingList;
+        PollutionReadingGrouper grouper = new PollutionReadingGrouper();
+        JSONArray jsonMeasureList = jsonDoc.getJSONArray("results");
+        for(int i=0; i<jsonMeasureList.length(); i++)
+            grouper.onRecord(jsonMeasureList.getJSONObject(i), null);
+
+        return grouper.toReadingList();
 /*
         Document updatedoc = new Document()
                 .append("$setOnInsert", new Document()
@@ -219,21 +303,21 @@ public class FetchAdapter {
     }
     */
 
-    public List<City> fetchAllCitiesAsList() throws IOException {
-        class CoordsAvg {
+    /**
+     * Folds OpenAQ locations into one centroid per city as pages arrive, safe for concurrent pages
+     */
+    private static class CityCentroidAccumulator implements JsonRecordReader.RecordHandler {
+        private static class CoordsAvg {
             private double latSum=0, lonSum=0;
             private int count=0;
             public void add(City.Coords c){ latSum+=c.lat; lonSum+=c.lon; count++;}
             public City.Coords compute() { return new City.Coords(latSum/count, lonSum/count); }
         }
 
-        List<City> resultList = new ArrayList<>();
+        private final HashMap<City.CityName, CoordsAvg> cityMap = new HashMap<>();
 
-        JSONObject jsonDoc = OpenAQFetcher.getInstance().getAllLocations();
-        JSONArray jsonLocationList = jsonDoc.getJSONArray("results");
-        HashMap<City.CityName, CoordsAvg> cityMap = new HashMap<>();
-        for(int i=0; i<jsonLocationList.length(); i++) {
-            JSONObject jsonLocation = jsonLocationList.getJSONObject(i);
+        @Override
+        public void onRecord(JSONObject jsonLocation, JSONObject header) {
             String country = jsonLocation.getString("country");
             String city = jsonLocation.getString("city");
             Double latitude = jsonLocation.getJSONObject("coordinates").getDouble("latitude");
@@ -241,20 +325,36 @@ public class FetchAdapter {
 
             // filter unuseful locations
             if(city.equals("N/A") || country.equals("N/A") || city.equals("unused"))
-                continue;
+                return;
 
             City newcity = new City(country, city, null, new City.Coords(latitude, longitude));
 
             // TODO: Fix this design error. What coordinate set should we use if there are many locations in the same city?
             // For now lets take a centroid using avg on lat and lon
-            if(!cityMap.containsKey(newcity.getCityName()))
-                cityMap.put(newcity.getCityName(), new CoordsAvg());
+            synchronized (cityMap) {
+                if(!cityMap.containsKey(newcity.getCityName()))
+                    cityMap.put(newcity.getCityName(), new CoordsAvg());
 
-            cityMap.get(newcity.getCityName()).add(newcity.getCoords());
+                cityMap.get(newcity.getCityName()).add(newcity.getCoords());
+            }
         }
 
-        for(Map.Entry<City.CityName, CoordsAvg> c : cityMap.entrySet())
-            resultList.add(new City(c.getKey(), c.getValue().compute(), null));
+        List<City> toCityList() {
+            List<City> resultList = new ArrayList<>();
+            synchronized (cityMap) {
+                for(Map.Entry<City.CityName, CoordsAvg> c : cityMap.entrySet())
+                    resultList.add(new City(c.getKey(), c.getValue().compute(), null));
+            }
+            return resultList;
+        }
+    }
+
+    public List<City> fetchAllCitiesAsList() throws IOException {
+        // pages are fetched in parallel and folded into centroids, the raw catalogue is never held in memory
+        CityCentroidAccumulator accumulator = new CityCentroidAccumulator();
+        int found = OpenAQFetcher.getInstance().streamAllLocations(accumulator);
+        List<City> resultList = accumulator.toCityList();
+        System.out.println("Read " + found + " OpenAQ locations in " + resultList.size() + " cities");
         return resultList;
     }
 
@@ -6,11 +6,7 @@ import org.bson.codecs.DocumentCodec;
 import org.bson.json.JsonMode;
 import org.bson.json.JsonWriterSettings;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.file.Paths;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
@@ -23,27 +19,15 @@ public class FetchUtils {
             = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
     private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec(MongoDBManager.CODEC_REGISTRY);
 
-    public static String doGet(String url) throws IOException {
-        URL obj = new URL(url);
-        HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-        con.setRequestMethod("GET");
-        int responseCode = con.getResponseCode();
-        if (responseCode == HttpURLConnection.HTTP_OK) { // success
-            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream(), "UTF-8"));
-            String inputLine;
-            StringBuilder response = new StringBuilder();
-
-            while ((inputLine = in.readLine()) != null) {
-                response.append(inputLine);
-            }
-            in.close();
+    /**
+     * Like doGet, but the body is consumed by handler while it is being received instead of being buffered
+     */
+    public static <T> T doGetStream(String url, HttpFetcher.ResponseHandler<T> handler) throws IOException {
+        return HttpFetcher.getInstance().get(url, handler);
+    }
 
-            // print result
-            return response.toString();
-        } else {
-            throw new IllegalStateException("Got HTTP unexpected status " + responseCode + ": " + con.getResponseMessage()
-                    + "\nfor url " + url);
-        }
+    public static String doGet(String url) throws IOException {
+        return HttpFetcher.getInstance().get(url);
     }
 
     public static String readFile(String filename) throws IOException {
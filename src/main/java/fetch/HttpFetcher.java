@@ -0,0 +1,117 @@
+package main.java.fetch;
+
+import main.java.db.SettingsManager;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP client shared by DarkSky, OpenAQ and GeoCode fetchers.
+ * Connections are kept alive and reused by the JVM connection cache (bodies are always fully read and closed,
+ * never disconnected), responses are requested gzip compressed and every request has connect/read timeouts.
+ * getAsync runs requests on a bounded pool, so callers can keep several requests in flight without owning threads.
+ */
+public class HttpFetcher {
+    private static HttpFetcher INSTANCE = new HttpFetcher();
+    public static HttpFetcher getInstance() {
+        return INSTANCE;
+    }
+
+    public interface ResponseHandler<T> {
+        T handle(Reader body) throws IOException;
+    }
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final ExecutorService asyncPool;
+
+    private HttpFetcher() {
+        connectTimeoutMs = SettingsManager.MAINSETTINGS.getOrSetDefault("http", "connectTimeoutMs", 10000);
+        readTimeoutMs = SettingsManager.MAINSETTINGS.getOrSetDefault("http", "readTimeoutMs", 30000);
+        int maxConnections = SettingsManager.MAINSETTINGS.getOrSetDefault("http", "maxIdleConnectionsPerHost", 16);
+        int asyncThreads = SettingsManager.MAINSETTINGS.getOrSetDefault("http", "asyncThreads", 8);
+
+        // size of the keep-alive cache of HttpURLConnection, read once when the first connection is made
+        if(System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+
+        AtomicInteger threadCount = new AtomicInteger();
+        asyncPool = Executors.newFixedThreadPool(asyncThreads, r -> {
+            Thread t = new Thread(r, "http-fetcher-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Perform a GET, the body is consumed by handler while it is being received
+     */
+    public <T> T get(String url, ResponseHandler<T> handler) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        con.setRequestMethod("GET");
+        con.setConnectTimeout(connectTimeoutMs);
+        con.setReadTimeout(readTimeoutMs);
+        con.setRequestProperty("Accept-Encoding", "gzip");
+        con.setRequestProperty("Connection", "keep-alive");
+
+        int responseCode = con.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            // drain the error body, otherwise the connection cannot go back to the keep-alive cache
+            InputStream err = con.getErrorStream();
+            if(err != null) {
+                try (InputStream in = err) {
+                    byte[] buffer = new byte[4096];
+                    while (in.read(buffer) != -1) ;
+                }
+            }
+            throw new IllegalStateException("Got HTTP unexpected status " + responseCode + ": " + con.getResponseMessage()
+                    + "\nfor url " + url);
+        }
+
+        InputStream body = con.getInputStream();
+        if("gzip".equalsIgnoreCase(con.getContentEncoding()))
+            body = new GZIPInputStream(body);
+        try (Reader in = new BufferedReader(new InputStreamReader(body, "UTF-8"))) {
+            T result = handler.handle(in);
+            // read what the handler left, so the connection can be reused
+            while (in.read() != -1) ;
+            return result;
+        }
+    }
+
+    public String get(String url) throws IOException {
+        return get(url, HttpFetcher::readAll);
+    }
+
+    /**
+     * Asynchronous version of get, completes exceptionally with the IOException thrown by the request
+     */
+    public <T> CompletableFuture<T> getAsync(String url, ResponseHandler<T> handler) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        asyncPool.execute(() -> {
+            try {
+                future.complete(get(url, handler));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public CompletableFuture<String> getAsync(String url) {
+        return getAsync(url, HttpFetcher::readAll);
+    }
+
+    private static String readAll(Reader in) throws IOException {
+        StringBuilder response = new StringBuilder();
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            response.append(buffer, 0, n);
+        return response.toString();
+    }
+}
@@ -0,0 +1,142 @@
+package main.java.fetch;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming reader for API responses shaped as { ..., "results": [ {record}, {record}, ... ] }.
+ * Only one record of the array is materialized at a time, so memory does not depend on the response size.
+ */
+public class JsonRecordReader {
+    public interface RecordHandler {
+        /**
+         * @param header top level fields that precede the record array, see getHeader()
+         */
+        void onRecord(JSONObject record, JSONObject header) throws IOException;
+    }
+
+    private final JSONTokener tokener;
+    private final JSONObject header = new JSONObject();
+
+    public JsonRecordReader(Reader reader) {
+        this.tokener = new JSONTokener(reader);
+    }
+
+    /**
+     * Top level fields read so far, except arrays. It is filled while reading, so a handler can use the fields
+     * that precede the record array (e.g. DarkSky "timezone").
+     */
+    public JSONObject getHeader() {
+        return header;
+    }
+
+    /**
+     * Walk the whole document passing each object of the array found at arrayPath to handler
+     * @param arrayPath keys to follow from the root, e.g. {"hourly", "data"}
+     * @return top level fields, see getHeader()
+     */
+    public JSONObject readRecords(String[] arrayPath, RecordHandler handler) throws IOException {
+        try {
+            expect('{');
+            readObject(0, arrayPath, handler);
+        } catch (JSONException e) {
+            throw new IOException("Malformed JSON response", e);
+        }
+        return header;
+    }
+
+    private void readObject(int depth, String[] path, RecordHandler handler) throws IOException {
+        char c = tokener.nextClean();
+        if(c == '}')
+            return;
+        tokener.back();
+
+        while(true) {
+            c = tokener.nextClean();
+            if(c != '"' && c != '\'')
+                throw tokener.syntaxError("Expected a key");
+            String key = tokener.nextString(c);
+            expect(':');
+
+            if(depth < path.length && key.equals(path[depth])) {
+                if(depth == path.length - 1)
+                    readArray(handler);
+                else {
+                    expect('{');
+                    readObject(depth + 1, path, handler);
+                }
+            } else if(depth == 0 && peek() != '[')
+                header.put(key, tokener.nextValue()); // small top level values: meta, timezone, ...
+            else
+                skipValue();
+
+            c = tokener.nextClean();
+            if(c == '}')
+                return;
+            if(c != ',')
+                throw tokener.syntaxError("Expected ',' or '}'");
+        }
+    }
+
+    private void readArray(RecordHandler handler) throws IOException {
+        expect('[');
+        if(peek() == ']') {
+            tokener.next();
+            return;
+        }
+
+        while(true) {
+            Object value = tokener.nextValue();
+            if(value instanceof JSONObject)
+                handler.onRecord((JSONObject)value, header);
+
+            char c = tokener.nextClean();
+            if(c == ']')
+                return;
+            if(c != ',')
+                throw tokener.syntaxError("Expected ',' or ']'");
+        }
+    }
+
+    // skip a value without building it
+    private void skipValue() {
+        char c = tokener.nextClean();
+        if(c == '"' || c == '\'') {
+            tokener.nextString(c);
+            return;
+        }
+        if(c != '{' && c != '[') {
+            tokener.back();
+            tokener.nextValue(); // number, boolean or null
+            return;
+        }
+
+        int depth = 1;
+        while(depth > 0) {
+            c = tokener.next();
+            if(c == 0)
+                throw tokener.syntaxError("Unterminated value");
+            else if(c == '"' || c == '\'')
+                tokener.nextString(c);
+            else if(c == '{' || c == '[')
+                depth++;
+            else if(c == '}' || c == ']')
+                depth--;
+        }
+    }
+
+    private char peek() {
+        char c = tokener.nextClean();
+        tokener.back();
+        return c;
+    }
+
+    private void expect(char expected) {
+        if(tokener.nextClean() != expected)
+            throw tokener.syntaxError("Expected '" + expected + "'");
+    }
+}
@@ -8,6 +8,10 @@ import java.net.URLEncoder;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class OpenAQFetcher {
     private static OpenAQFetcher INSTANCE = new OpenAQFetcher();
@@ -18,18 +22,57 @@ public class OpenAQFetcher {
     // Format example: 2019-12-22T00:00:00+01:00
     public static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 
-    public JSONObject getPollutionMeasurements(String country, String city, LocalDateTime fromDate, LocalDateTime toDate) throws IOException {
+    // max page size accepted by OpenAQ
+    private static final int MEASUREMENTS_PAGE_LIMIT = 10000;
+
+    private String measurementsUrl(String country, String city, LocalDateTime fromDate, LocalDateTime toDate) throws IOException {
+        return measurementsUrl(country, city, fromDate, toDate, 1);
+    }
+
+    private String measurementsUrl(String country, String city, LocalDateTime fromDate, LocalDateTime toDate, int page) throws IOException {
         //https://api.openaq.org/v1/measurements?coordinates=41.902782,12.4963&date_from=2019-12-21&date_to=2019-12-23
-        String jsonString =
-                FetchUtils.doGet("https://api.openaq.org/v1/measurements?"+
-                        "country=" + URLEncoder.encode(country, "UTF-8") +
-                        "&city=" + URLEncoder.encode(city, "UTF-8") +
-                        "&date_from=" + URLEncoder.encode(fromDate.format(DATE_TIME_FORMATTER), "UTF-8") +
-                        "&date_to=" + URLEncoder.encode(toDate.format(DATE_TIME_FORMATTER), "UTF-8") +
-                        "&limit=" + 10000);
+        return "https://api.openaq.org/v1/measurements?"+
+                "country=" + URLEncoder.encode(country, "UTF-8") +
+                "&city=" + URLEncoder.encode(city, "UTF-8") +
+                "&date_from=" + URLEncoder.encode(fromDate.format(DATE_TIME_FORMATTER), "UTF-8") +
+                "&date_to=" + URLEncoder.encode(toDate.format(DATE_TIME_FORMATTER), "UTF-8") +
+                "&page=" + page +
+                "&limit=" + MEASUREMENTS_PAGE_LIMIT;
+    }
+
+    public JSONObject getPollutionMeasurements(String country, String city, LocalDateTime fromDate, LocalDateTime toDate) throws IOException {
+        String jsonString = FetchUtils.doGet(measurementsUrl(country, city, fromDate, toDate));
         return new JSONObject(jsonString);
     }
 
+    /**
+     * Streaming version of getPollutionMeasurements, each element of "results" is passed to handler
+     * @return response fields other than results (meta)
+     */
+    public JSONObject streamPollutionMeasurements(String country, String city, LocalDateTime fromDate, LocalDateTime toDate,
+                                                  JsonRecordReader.RecordHandler handler) throws IOException {
+        return FetchUtils.doGetStream(measurementsUrl(country, city, fromDate, toDate),
+                body -> new JsonRecordReader(body).readRecords(new String[]{"results"}, handler));
+    }
+
+    /**
+     * Stream all measurements of a long interval, following pages until meta.found results have been read
+     * @return number of results read
+     */
+    public int streamPollutionMeasurementsRange(String country, String city, LocalDateTime fromDate, LocalDateTime toDate,
+                                                JsonRecordReader.RecordHandler handler) throws IOException {
+        int read = 0;
+        int requiredPages = 1;
+        for(int page=1; page<=requiredPages; page++) {
+            JSONObject header = FetchUtils.doGetStream(measurementsUrl(country, city, fromDate, toDate, page),
+                    body -> new JsonRecordReader(body).readRecords(new String[]{"results"}, handler));
+            int found = header.getJSONObject("meta").getInt("found");
+            requiredPages = (found + MEASUREMENTS_PAGE_LIMIT - 1) / MEASUREMENTS_PAGE_LIMIT;
+            read += Math.min(MEASUREMENTS_PAGE_LIMIT, found - (page - 1) * MEASUREMENTS_PAGE_LIMIT);
+        }
+        return read;
+    }
+
     public JSONObject getPollutionMeasurements(Double lat, Double lon, LocalDateTime fromDate, LocalDateTime toDate) throws IOException {
         //https://api.openaq.org/v1/measurements?country=IT&city=Roma&date_from=2019-12-21&date_to=2019-12-23
         String jsonString =
@@ -66,6 +109,38 @@ public class OpenAQFetcher {
         return jsonDoc;
     }
 
+    /**
+     * Stream the whole location catalogue. Once meta.found is known from the first page, the other pages are
+     * fetched in parallel, so handler may be called concurrently from different threads.
+     * @return number of locations read
+     */
+    public int streamAllLocations(JsonRecordReader.RecordHandler handler) throws IOException {
+        int limit = 10000;
+        String[] resultsPath = new String[]{"results"};
+
+        JSONObject header = FetchUtils.doGetStream("https://api.openaq.org/v1/locations?page=1&limit=" + limit,
+                body -> new JsonRecordReader(body).readRecords(resultsPath, handler));
+        int found = header.getJSONObject("meta").getInt("found");
+        int requiredPages = (found + limit - 1) / limit;
+
+        List<CompletableFuture<JSONObject>> pages = new ArrayList<>();
+        for(int i=2; i<=requiredPages; i++)
+            pages.add(HttpFetcher.getInstance().getAsync("https://api.openaq.org/v1/locations?page=" + i + "&limit=" + limit,
+                    body -> new JsonRecordReader(body).readRecords(resultsPath, handler)));
+
+        try {
+            CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Location fetch interrupted", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+        return found;
+    }
+
     public static void main(String[] args) throws IOException {
         /*OpenAQFetcher.getInstance()
                 .getPollutionMeasurements(41.902782,12.4963, LocalDate.now().minusDays(4), LocalDate.now());
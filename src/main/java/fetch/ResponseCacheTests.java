@@ -0,0 +1,98 @@
+package main.java.fetch;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Check that SegmentedResponseCache stays bounded on disk: the cache is filled well past maxBytes in a temporary
+ * directory and the size of its segments is checked after every put.
+ * java main.java.fetch.ResponseCacheTests [entries]
+ */
+public class ResponseCacheTests {
+    private static final long MAX_BYTES = 20 * 1024;
+    private static final long MAX_SEGMENT_BYTES = 4 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        Path directory = Files.createTempDirectory("response-cache-test");
+        Random random = new Random(42);
+
+        long maxOnDisk = 0;
+        SegmentedResponseCache cache = new SegmentedResponseCache(directory, MAX_BYTES, MAX_SEGMENT_BYTES);
+        try {
+            for(int i=0; i<entries; i++) {
+                cache.put("key-" + i, randomValue(random, 1024));
+                maxOnDisk = Math.max(maxOnDisk, getSize(directory));
+            }
+            // the latest entry is never evicted
+            String last = cache.get("key-" + (entries - 1));
+            check("latest entry readable", last != null && last.length() == 1024);
+        } finally {
+            cache.close();
+        }
+        check("size on disk " + maxOnDisk + " bytes at most, max " + MAX_BYTES, maxOnDisk <= MAX_BYTES);
+
+        // reopening rebuilds the same bound from the segments
+        cache = new SegmentedResponseCache(directory, MAX_BYTES, MAX_SEGMENT_BYTES);
+        try {
+            for(int i=0; i<entries; i++)
+                cache.put("reopened-" + i, randomValue(random, 1024));
+        } finally {
+            cache.close();
+        }
+        long reopened = getSize(directory);
+        check("size on disk after reopening " + reopened + " bytes, max " + MAX_BYTES, reopened <= MAX_BYTES);
+
+        // a compacted segment that could not be deleted (still mapped on Windows) is ignored and deleted at startup
+        Path staleDirectory = Files.createTempDirectory("response-cache-stale");
+        cache = new SegmentedResponseCache(staleDirectory, MAX_BYTES, MAX_SEGMENT_BYTES);
+        cache.put("key-0", "stale");
+        cache.close();
+        Path leftover = directory.resolve("segment-000000.seg");
+        Files.move(staleDirectory.resolve("segment-000000.seg"), leftover);
+        deleteDirectory(staleDirectory);
+        cache = new SegmentedResponseCache(directory, MAX_BYTES, MAX_SEGMENT_BYTES);
+        try {
+            check("leftover segment deleted", !Files.exists(leftover));
+            check("evicted entry not revived", cache.get("key-0") == null);
+        } finally {
+            cache.close();
+        }
+
+        deleteDirectory(directory);
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println("[" + name + "]: " + (ok ? "ok" : "not ok"));
+        if(!ok)
+            System.exit(1);
+    }
+
+    // digits compress less than repeated text, so records have a realistic size
+    private static String randomValue(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for(int i=0; i<length; i++)
+            builder.append((char)('0' + random.nextInt(10)));
+        return builder.toString();
+    }
+
+    private static long getSize(Path directory) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for(Path p : stream)
+                size += Files.size(p);
+        }
+        return size;
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for(Path p : stream)
+                Files.delete(p);
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,370 @@
+package main.java.fetch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Persistent key-value store for API responses.
+ * Values are deflate compressed and appended to segment files; the exact key -> (segment, offset) index
+ * is rebuilt at startup by scanning record headers, and reads go through memory mapped segments.
+ * When the store grows over maxBytes, least recently read entries are evicted and live entries are
+ * copied into fresh segments (compaction). The first live segment is then recorded in the base file, so older
+ * segments are garbage even if they cannot be deleted yet (mapped files are locked on Windows until unmapped):
+ * their deletion is retried at the next compaction and at startup.
+ *
+ * Record layout: magic(int) keyLength(int) key(utf8) valueLength(int) crc32(int) value(deflated)
+ */
+public class SegmentedResponseCache {
+    private static final int MAGIC = 0x52435331; // "RCS1"
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String BASE_FILE = "base";
+
+    private static class Entry {
+        final int segment;
+        final long offset; // value offset
+        final int length;  // compressed length
+        final int crc;
+        volatile long lastAccess;
+
+        Entry(int segment, long offset, int length, int crc) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.lastAccess = System.nanoTime();
+        }
+
+        long recordSize(String key) {
+            return 16 + key.getBytes(StandardCharsets.UTF_8).length + length;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxSegmentBytes;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, Entry> index = new HashMap<>();
+    private final TreeMap<Integer, Long> segmentSizes = new TreeMap<>();
+    private final HashMap<Integer, MappedByteBuffer> mappings = new HashMap<>();
+    // compacted segments still on disk
+    private final TreeSet<Integer> pendingDeletes = new TreeSet<>();
+    private long liveBytes = 0;
+
+    private int activeSegment;
+    private FileChannel activeChannel;
+
+    public SegmentedResponseCache(Path directory, long maxBytes, long maxSegmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxSegmentBytes = maxSegmentBytes;
+        Files.createDirectories(directory);
+
+        int base = readBase();
+        for(int segment : listSegments())
+            if(segment < base)
+                pendingDeletes.add(segment);
+            else
+                loadSegment(segment);
+        deletePending();
+        // keep appending to the last segment if it still has room
+        if(segmentSizes.isEmpty())
+            openSegment(base);
+        else if(segmentSizes.lastEntry().getValue() < maxSegmentBytes)
+            openSegment(segmentSizes.lastKey());
+        else
+            openSegment(segmentSizes.lastKey() + 1);
+        System.out.println("Response cache " + directory + ": " + index.size() + " entries, "
+                + getTotalBytes() / (1024*1024) + " MB");
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for(Path p : stream) {
+                String name = p.getFileName().toString();
+                segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * First segment still in use, older ones are left over from compactions
+     */
+    private int readBase() throws IOException {
+        Path path = directory.resolve(BASE_FILE);
+        if(!Files.exists(path))
+            return 0;
+        return Integer.parseInt(new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim());
+    }
+
+    private void writeBase(int base) throws IOException {
+        Path temp = directory.resolve(BASE_FILE + ".tmp");
+        Files.write(temp, Integer.toString(base).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, directory.resolve(BASE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete compacted segments, those that cannot be deleted yet are kept for the next try
+     */
+    private void deletePending() {
+        Iterator<Integer> it = pendingDeletes.iterator();
+        while(it.hasNext()) {
+            Path path = segmentPath(it.next());
+            try {
+                Files.deleteIfExists(path);
+                it.remove();
+            } catch (IOException e) {
+                System.out.println("Cannot delete compacted " + path + " yet: " + e);
+            }
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Index a segment reading only record headers. A torn record at the end (crash while appending) is truncated.
+     * Segments are loaded in ascending order, so the latest version of a key wins.
+     */
+    private void loadSegment(int segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while(position < size) {
+                header.clear();
+                if(size - position < 16 || channel.read(header, position) < 8 || header.getInt(0) != MAGIC)
+                    break;
+                int keyLength = header.getInt(4);
+                if(keyLength <= 0 || position + 16 + keyLength > size)
+                    break;
+
+                ByteBuffer keyAndLengths = ByteBuffer.allocate(keyLength + 8);
+                channel.read(keyAndLengths, position + 8);
+                String key = new String(keyAndLengths.array(), 0, keyLength, StandardCharsets.UTF_8);
+                int valueLength = keyAndLengths.getInt(keyLength);
+                int crc = keyAndLengths.getInt(keyLength + 4);
+                long valueOffset = position + 16 + keyLength;
+                if(valueLength < 0 || valueOffset + valueLength > size)
+                    break;
+
+                putEntry(key, new Entry(segment, valueOffset, valueLength, crc));
+                position = valueOffset + valueLength;
+            }
+            if(position < size) {
+                System.out.println("Truncating torn record at " + position + " in " + segmentPath(segment));
+                channel.truncate(position);
+            }
+            segmentSizes.put(segment, position);
+        }
+    }
+
+    private void openSegment(int segment) throws IOException {
+        if(activeChannel != null)
+            activeChannel.close();
+        activeSegment = segment;
+        activeChannel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentSizes.put(segment, activeChannel.size());
+    }
+
+    private void putEntry(String key, Entry entry) {
+        Entry old = index.put(key, entry);
+        if(old != null)
+            liveBytes -= old.recordSize(key);
+        liveBytes += entry.recordSize(key);
+    }
+
+    private long getTotalBytes() {
+        long total = 0;
+        for(long size : segmentSizes.values())
+            total += size;
+        return total;
+    }
+
+    public String get(String key) throws IOException {
+        byte[] compressed;
+        lock.readLock().lock();
+        try {
+            Entry entry = index.get(key);
+            if(entry == null)
+                return null;
+            entry.lastAccess = System.nanoTime();
+
+            ByteBuffer view = mapping(entry).duplicate();
+            view.position((int)entry.offset);
+            compressed = new byte[entry.length];
+            view.get(compressed);
+
+            CRC32 crc = new CRC32();
+            crc.update(compressed);
+            if((int)crc.getValue() != entry.crc)
+                throw new IOException("Corrupted cache entry " + key);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new String(inflate(compressed), StandardCharsets.UTF_8);
+    }
+
+    // segments are mapped once; the active one is mapped again when it has grown past the mapped region
+    private MappedByteBuffer mapping(Entry entry) throws IOException {
+        synchronized (mappings) {
+            MappedByteBuffer buffer = mappings.get(entry.segment);
+            if(buffer == null || buffer.capacity() < entry.offset + entry.length) {
+                try (FileChannel channel = FileChannel.open(segmentPath(entry.segment), StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                mappings.put(entry.segment, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    public void put(String key, String value) throws IOException {
+        byte[] compressed = deflate(value.getBytes(StandardCharsets.UTF_8));
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+
+        lock.writeLock().lock();
+        try {
+            appendRecord(key, compressed, (int)crc.getValue());
+            if(getTotalBytes() > maxBytes)
+                compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void appendRecord(String key, byte[] compressed, int crc) throws IOException {
+        if(segmentSizes.get(activeSegment) >= maxSegmentBytes)
+            openSegment(activeSegment + 1);
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(16 + keyBytes.length + compressed.length);
+        record.putInt(MAGIC).putInt(keyBytes.length).put(keyBytes)
+                .putInt(compressed.length).putInt(crc).put(compressed);
+        record.flip();
+
+        long position = segmentSizes.get(activeSegment);
+        while(record.hasRemaining())
+            activeChannel.write(record, position + record.position());
+        segmentSizes.put(activeSegment, position + record.limit());
+
+        putEntry(key, new Entry(activeSegment, position + 16 + keyBytes.length, compressed.length, crc));
+    }
+
+    /**
+     * Evict least recently read entries until live data fits in 3/4 of maxBytes, then copy live entries
+     * into new segments and delete the old ones. Caller must hold the write lock.
+     */
+    private void compact() throws IOException {
+        long target = maxBytes / 4 * 3;
+        int evicted = 0;
+        if(liveBytes > target) {
+            List<Map.Entry<String, Entry>> byAge = new ArrayList<>(index.entrySet());
+            byAge.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            for(Map.Entry<String, Entry> e : byAge) {
+                if(liveBytes <= target)
+                    break;
+                index.remove(e.getKey());
+                liveBytes -= e.getValue().recordSize(e.getKey());
+                evicted++;
+            }
+        }
+
+        // copy in (segment, offset) order to read old segments sequentially
+        List<Map.Entry<String, Entry>> live = new ArrayList<>(index.entrySet());
+        live.sort(Comparator.<Map.Entry<String, Entry>>comparingInt(e -> e.getValue().segment)
+                .thenComparingLong(e -> e.getValue().offset));
+
+        Set<Integer> oldSegments = new HashSet<>(segmentSizes.keySet());
+        int base = activeSegment + 1;
+        openSegment(base);
+        for(Map.Entry<String, Entry> e : live) {
+            Entry entry = e.getValue();
+            ByteBuffer view = mapping(entry).duplicate();
+            view.position((int)entry.offset);
+            byte[] compressed = new byte[entry.length];
+            view.get(compressed);
+            long lastAccess = entry.lastAccess;
+            appendRecord(e.getKey(), compressed, entry.crc);
+            index.get(e.getKey()).lastAccess = lastAccess;
+        }
+        activeChannel.force(false);
+        // from here old segments are garbage on disk too, whatever happens to their files
+        writeBase(base);
+        // live data is now exactly the rewritten entries
+        liveBytes = 0;
+        for(Map.Entry<String, Entry> e : index.entrySet())
+            liveBytes += e.getValue().recordSize(e.getKey());
+
+        // mapped buffers are released by GC, until then Windows refuses to delete their files
+        synchronized (mappings) {
+            for(int segment : oldSegments) {
+                mappings.remove(segment);
+                segmentSizes.remove(segment);
+            }
+        }
+        pendingDeletes.addAll(oldSegments);
+        deletePending();
+        System.out.println("Response cache compacted: " + evicted + " entries evicted, " + index.size()
+                + " kept in " + getTotalBytes() / (1024*1024) + " MB");
+    }
+
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            activeChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while(!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 6);
+        byte[] buffer = new byte[16384];
+        try {
+            while(!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated cache entry");
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted cache entry", e);
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+}
@@ -32,6 +32,10 @@ public class LoadingWindow implements ProgressHandler {
         void run() throws E;
     }
 
+    public interface ThrowingSupplier<T, E extends Exception> {
+        T get() throws E;
+    }
+
     public interface ThrowingReportingRunnable<E extends Exception> {
         void run(ProgressHandler lw) throws E;
     }
@@ -69,12 +73,22 @@ public class LoadingWindow implements ProgressHandler {
     }
 
     public void showAndWaitCallable(ThrowingRunnable<Exception> bwork, String loadingtext, @Nullable String successmsg) {
+        showAndWaitCallableWithResult(() -> {
+            bwork.run();
+            return successmsg;
+        }, loadingtext);
+    }
+
+    /**
+     * Like showAndWaitCallable, but the success message is the result of bwork (no message if null)
+     */
+    public void showAndWaitCallableWithResult(ThrowingSupplier<String, Exception> bwork, String loadingtext) {
         setupStage(loadingtext);
         progressBar.setProgress(ProgressIndicator.INDETERMINATE_PROGRESS);
 
         executeThreadOnFx(new Thread(() -> {
             try {
-                bwork.run();
+                String successmsg = bwork.get();
                 Platform.runLater(() -> {
                     stage.close();
                     if(successmsg != null)
@@ -103,7 +117,7 @@ public class LoadingWindow implements ProgressHandler {
 
     @Override
     public void reportProgressText(String text) {
-
+        Platform.runLater(() -> loadingmsg.setText(text));
     }
 
     @Override
@@ -15,6 +15,9 @@ import javafx.stage.Stage;
 import javafx.util.Callback;
 import main.java.City;
 import main.java.User;
+import main.java.db.BucketMigrator;
+import main.java.db.IngestionScheduler;
+import main.java.db.MeasureSource;
 import main.java.db.MongoDBManager;
 import main.java.db.PageCursor;
 import main.java.db.SettingsManager;
@@ -27,6 +30,8 @@ import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.lang.String;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -170,6 +175,12 @@ public class Task2GUIController {
     @FXML
     private MenuItem reloadLocationsMenuItem;
 
+    @FXML
+    private MenuItem fleetIngestionMenuItem;
+
+    @FXML
+    private MenuItem migrateBucketsMenuItem;
+
     @FXML
     private MenuItem openSettings;
 
@@ -362,8 +373,9 @@ public class Task2GUIController {
                 });
         buttonWeatherForecastReliability.setOnAction(
                 (event) -> {
-                    HashSet<LocalDate> pastWeatherDates = MongoDBManager.getInstance().getPastWeatherAvailableDates(getSelectedCity());
-                    HashSet<LocalDate> forecastWDates = MongoDBManager.getInstance().getForecastWeatherAvailableDates(getSelectedCity());
+                    EnumMap<MeasureSource, HashSet<LocalDate>> availableDates = MongoDBManager.getInstance().getAvailableDates(getSelectedCity());
+                    HashSet<LocalDate> pastWeatherDates = availableDates.get(MeasureSource.PAST_WEATHER);
+                    HashSet<LocalDate> forecastWDates = availableDates.get(MeasureSource.FORECAST_WEATHER);
                     changeTimePane(TimePaneType.SINGLEDATE, (d1, d2) -> showWeatherReliability(d1),
                         (d) -> pastWeatherDates.contains(d) && forecastWDates.contains(d));
                     });
@@ -384,8 +396,9 @@ public class Task2GUIController {
 
             buttonShowAirPollutionForecast.setOnAction(
                     (event) -> {
-                        HashSet<LocalDate> forecastDates = MongoDBManager.getInstance().getForecastWeatherAvailableDates(getSelectedCity());
-                        HashSet<LocalDate> pollutionDates =  MongoDBManager.getInstance().getPollutionAvailableDates(selectedCity);
+                        EnumMap<MeasureSource, HashSet<LocalDate>> availableDates = MongoDBManager.getInstance().getAvailableDates(getSelectedCity());
+                        HashSet<LocalDate> forecastDates = availableDates.get(MeasureSource.FORECAST_WEATHER);
+                        HashSet<LocalDate> pollutionDates = availableDates.get(MeasureSource.POLLUTION);
                         boolean todayPollutionAvailable = pollutionDates.contains(LocalDate.now().minusDays(1)) ||
                                 pollutionDates.contains(LocalDate.now());
                         changeTimePane(TimePaneType.SINGLEDATE, (d1, d2) -> showAirPollutionForecast(d1),
@@ -420,13 +433,25 @@ public class Task2GUIController {
             // menu events
             enableDisableUserMenuItem.setOnAction((event -> enableDisableUsers()));
             promoteDemoteMenuItem.setOnAction((event -> promoteDemoteAdmin()));
-            reloadLocationsMenuItem.setOnAction(event -> SimpleDialog.showIfErrorOrSuccess(
-                    () -> MongoDBManager.getInstance().resetLocationList(),
-                    "Reloading locations...","Location reload completed"
+            reloadLocationsMenuItem.setOnAction(event -> new LoadingWindow().showAndWaitCallableWithResult(
+                    () -> "Location reload completed, " + MongoDBManager.getInstance().resetLocationList() + " locations changed",
+                    "Reloading locations..."
             ));
-            syncLocationsMenuItem.setOnAction(event -> SimpleDialog.showIfErrorOrSuccess(
-                    () -> MongoDBManager.getInstance().syncLocationList(),
-                    "Syncing locations...","Location sync completed"
+            syncLocationsMenuItem.setOnAction(event -> new LoadingWindow().showAndWaitCallableWithResult(
+                    () -> "Location sync completed, " + MongoDBManager.getInstance().syncLocationList() + " locations changed",
+                    "Syncing locations..."
+            ));
+            // same range resumes the same job
+            fleetIngestionMenuItem.setOnAction(e ->
+                    changeTimePane(TimePaneType.DATERANGE,
+                            (d1, d2) -> new LoadingWindow().showAndWaitCallableWithBar((progress) -> new IngestionScheduler()
+                                            .run("fleet-" + d1 + "-" + d2, d1, d2, EnumSet.allOf(MeasureSource.class), progress),
+                                    "Loading measures of all enabled cities...", "Fleet ingestion completed")
+                    )
+            );
+            migrateBucketsMenuItem.setOnAction(event -> new LoadingWindow().showAndWaitCallableWithResult(
+                    () -> "Bucket migration completed, " + new BucketMigrator().migrateAll() + " buckets converted",
+                    "Migrating buckets to the configured layout..."
             ));
             openSettings.setOnAction(e -> showSettings());
         }
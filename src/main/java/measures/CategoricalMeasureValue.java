@@ -0,0 +1,56 @@
+package main.java.measures;
+
+import main.java.City;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Aggregated non-numeric measure (e.g. sky): value is the most frequent category of the period,
+ * histogram holds the count of every category, most frequent first.
+ */
+public class CategoricalMeasureValue extends MeasureValue {
+    public final LinkedHashMap<String, Long> histogram;
+
+    public CategoricalMeasureValue(LocalDateTime datetime, City.CityName cityName, String name, String unit,
+                                   Map<String, Long> histogram) {
+        super(datetime, cityName, name, mode(histogram), unit);
+        this.histogram = sortByCount(histogram);
+    }
+
+    public CategoricalMeasureValue(LocalDateTime datetime, City.CityName cityName, String name, String mode, String unit,
+                                   Map<String, Long> histogram) {
+        super(datetime, cityName, name, mode, unit);
+        this.histogram = sortByCount(histogram);
+    }
+
+    /**
+     * Most frequent category, ties broken by the smallest category name
+     */
+    public static String mode(Map<String, Long> histogram) {
+        String best = "";
+        long bestCount = -1;
+        for(Map.Entry<String, Long> entry : histogram.entrySet())
+            if(entry.getValue() > bestCount || (entry.getValue() == bestCount && entry.getKey().compareTo(best) < 0)) {
+                bestCount = entry.getValue();
+                best = entry.getKey();
+            }
+        return best;
+    }
+
+    private static LinkedHashMap<String, Long> sortByCount(Map<String, Long> histogram) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(histogram.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+        for(Map.Entry<String, Long> entry : entries)
+            result.put(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for(long n : histogram.values())
+            count += n;
+        return count;
+    }
+}